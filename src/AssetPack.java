@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2016  KeyboardFire <andy@keyboardfire.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.util.HashMap;
+
+/**
+ * All of the game's assets packed into a single file, which is mapped into
+ * memory once. Each asset is then a read-only slice of the mapping, which
+ * can be handed directly to stb_vorbis or stb_truetype without copying.
+ *
+ *     int    magic
+ *     int    version
+ *     int    number of entries
+ *     for each entry:
+ *         short  length of name
+ *         bytes  name (UTF-8)
+ *         int    offset of data from the start of the file
+ *         int    length of data
+ *     data, each entry starting on a 16-byte boundary
+ *
+ * Packs are built by running this class (make does it for assets.pack).
+ */
+public class AssetPack {
+
+    public static final String DEFAULT = "assets.pack";
+
+    private static final int MAGIC = 0x4a584150; // "JXAP"
+    private static final int VERSION = 1;
+    private static final int ALIGN = 16;
+
+    private final ByteBuffer data;
+    private final HashMap<String, int[]> index = new HashMap<>();
+
+    private static AssetPack shared;
+    private static boolean sharedOpened = false;
+
+    private AssetPack(ByteBuffer data) throws IOException {
+        this.data = data.order(ByteOrder.LITTLE_ENDIAN);
+        if (data.remaining() < 12 || data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+            throw new IOException("not an asset pack");
+        }
+        ByteBuffer header = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        header.position(8);
+        int count = header.getInt();
+        // every entry takes at least its name length, offset and length
+        if (count < 0 || count > header.remaining() / 10) throw new IOException("corrupt asset pack");
+        for (int i = 0; i < count; ++i) {
+            if (header.remaining() < 2) throw new IOException("corrupt asset pack");
+            int nameLength = header.getShort();
+            if (nameLength < 0 || header.remaining() < nameLength + 8) {
+                throw new IOException("corrupt asset pack");
+            }
+            byte name[] = new byte[nameLength];
+            header.get(name);
+            int offset = header.getInt(), length = header.getInt();
+            if (offset < 0 || length < 0 || (long)offset + length > data.limit()) {
+                throw new IOException("corrupt asset pack");
+            }
+            index.put(new String(name, StandardCharsets.UTF_8), new int[] { offset, length });
+        }
+    }
+
+    public static AssetPack open(Path file) throws IOException {
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new AssetPack(fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()));
+        }
+    }
+
+    /**
+     * Reads a pack bundled on the classpath, for when the game is run from
+     * a jar. This has to copy the pack into memory, since it can't be mapped.
+     */
+    public static AssetPack openResource(String name) throws IOException {
+        try (InputStream in = AssetPack.class.getResourceAsStream("/" + name)) {
+            if (in == null) return null;
+            byte bytes[] = in.readAllBytes();
+            ByteBuffer data = ByteBuffer.allocateDirect(bytes.length);
+            data.put(bytes).flip();
+            return new AssetPack(data);
+        }
+    }
+
+    /**
+     * A read-only view of the named asset, or null if it isn't in the pack.
+     */
+    public ByteBuffer get(String name) {
+        int entry[] = index.get(name);
+        if (entry == null) return null;
+        ByteBuffer view = data.duplicate();
+        view.limit(entry[0] + entry[1]).position(entry[0]);
+        return view.slice().asReadOnlyBuffer();
+    }
+
+    private static synchronized AssetPack shared() {
+        if (!sharedOpened) {
+            sharedOpened = true;
+            try {
+                Path file = Paths.get(DEFAULT);
+                shared = Files.isRegularFile(file) ? open(file) : openResource(DEFAULT);
+            } catch (IOException ex) {
+                System.err.println("could not open " + DEFAULT + ": " + ex);
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Loads an asset from assets.pack in the working directory, or from one
+     * on the classpath, falling back to the loose file at path.
+     */
+    public static ByteBuffer load(String path) throws IOException {
+        AssetPack pack = shared();
+        ByteBuffer asset = pack == null ? null : pack.get(path);
+        return asset != null ? asset : Util.readByteBuffer(path);
+    }
+
+    /**
+     * Packs the given files, under the names given, into a new pack.
+     */
+    public static void write(Path out, String... paths) throws IOException {
+        byte names[][] = new byte[paths.length][];
+        int headerSize = 12;
+        for (int i = 0; i < paths.length; ++i) {
+            names[i] = paths[i].getBytes(StandardCharsets.UTF_8);
+            headerSize += 2 + names[i].length + 8;
+        }
+
+        byte contents[][] = new byte[paths.length][];
+        int offsets[] = new int[paths.length];
+        long size = headerSize;
+        for (int i = 0; i < paths.length; ++i) {
+            contents[i] = Files.readAllBytes(Paths.get(paths[i]));
+            size = (size + ALIGN - 1) / ALIGN * ALIGN;
+            offsets[i] = (int)size;
+            size += contents[i].length;
+        }
+        if (size > Integer.MAX_VALUE) throw new IOException("asset pack too large");
+
+        ByteBuffer pack = ByteBuffer.allocate((int)size).order(ByteOrder.LITTLE_ENDIAN);
+        pack.putInt(MAGIC).putInt(VERSION).putInt(paths.length);
+        for (int i = 0; i < paths.length; ++i) {
+            pack.putShort((short)names[i].length).put(names[i])
+                .putInt(offsets[i]).putInt(contents[i].length);
+        }
+        for (int i = 0; i < paths.length; ++i) {
+            pack.position(offsets[i]);
+            pack.put(contents[i]);
+        }
+
+        Files.write(out, pack.array());
+    }
+
+    /**
+     *     java AssetPack out.pack file...
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: java AssetPack out.pack file...");
+            System.exit(2);
+        }
+        write(Paths.get(args[0]), java.util.Arrays.copyOfRange(args, 1, args.length));
+    }
+
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2016  KeyboardFire <andy@keyboardfire.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.lwjgl.openal.*;
+import static org.lwjgl.openal.AL10.*;
+import static org.lwjgl.openal.ALC10.*;
+
+import org.lwjgl.stb.STBVorbisInfo;
+
+/**
+ * Sound effects. Clips are decoded in the background as soon as they are
+ * loaded, so decoding overlaps with whatever the caller does next (such as
+ * setting up OpenGL); finishLoading() then waits for them and uploads them
+ * to OpenAL.
+ *
+ * Each clip gets a small pool of sources, so a clip can play over itself.
+ * When every source of a clip is busy, the one started longest ago is cut
+ * off and reused.
+ */
+public class Audio {
+
+    private static final int VOICES_PER_CLIP = 4;
+
+    private static class Decoded {
+        ShortBuffer pcm;
+        int channels, sampleRate;
+    }
+
+    private static class Clip {
+        Future<Decoded> decoding;
+        int buffer;
+        int sources[] = new int[VOICES_PER_CLIP];
+        long started[] = new long[VOICES_PER_CLIP];
+    }
+
+    private final ArrayList<Clip> clips = new ArrayList<>();
+    private ExecutorService decoder;
+
+    private long alcContext, alcDevice;
+    private long plays = 0;
+
+    public void open() {
+        alcDevice = alcOpenDevice((ByteBuffer)null);
+        alcContext = alcCreateContext(alcDevice, (IntBuffer)null);
+        alcMakeContextCurrent(alcContext);
+        AL.createCapabilities(ALC.createCapabilities(alcDevice));
+    }
+
+    private static Decoded decode(String filePath) throws java.io.IOException {
+        ByteBuffer vorbis = AssetPack.load(filePath);
+
+        Decoded decoded = new Decoded();
+        STBVorbisInfo info = STBVorbisInfo.malloc();
+        decoded.pcm = Util.decodeVorbis(vorbis, info);
+        decoded.channels = info.channels();
+        decoded.sampleRate = info.sample_rate();
+        info.free();
+        return decoded;
+    }
+
+    /**
+     * Starts decoding a clip in the background and returns its id for
+     * play(). The clip can't be played until finishLoading() is called.
+     */
+    public int load(String filePath) {
+        if (decoder == null) {
+            decoder = Executors.newFixedThreadPool(
+                    Runtime.getRuntime().availableProcessors(), r -> {
+                        Thread t = new Thread(r, "audio decoder");
+                        t.setDaemon(true);
+                        return t;
+                    });
+        }
+        Clip clip = new Clip();
+        clip.decoding = decoder.submit(() -> decode(filePath));
+        clips.add(clip);
+        return clips.size() - 1;
+    }
+
+    /**
+     * Waits for every clip to finish decoding and uploads them to OpenAL.
+     */
+    public void finishLoading() {
+        for (Clip clip : clips) {
+            if (clip.decoding == null) continue;
+
+            Decoded decoded;
+            try {
+                decoded = clip.decoding.get();
+            } catch (InterruptedException | ExecutionException ex) {
+                throw new RuntimeException(ex);
+            }
+            clip.decoding = null;
+
+            clip.buffer = alGenBuffers();
+            alBufferData(clip.buffer, decoded.channels == 1 ?
+                    AL_FORMAT_MONO16 : AL_FORMAT_STEREO16,
+                    decoded.pcm, decoded.sampleRate);
+
+            for (int v = 0; v < VOICES_PER_CLIP; ++v) {
+                clip.sources[v] = alGenSources();
+                alSourcei(clip.sources[v], AL_BUFFER, clip.buffer);
+            }
+        }
+
+        if (decoder != null) {
+            decoder.shutdown();
+            decoder = null;
+        }
+    }
+
+    public void play(int id) {
+        Clip clip = clips.get(id);
+        if (clip.decoding != null) return;
+
+        // prefer an idle voice, otherwise steal the oldest one
+        int voice = 0;
+        for (int v = 0; v < VOICES_PER_CLIP; ++v) {
+            if (alGetSourcei(clip.sources[v], AL_SOURCE_STATE) != AL_PLAYING) {
+                voice = v;
+                break;
+            }
+            if (clip.started[v] < clip.started[voice]) voice = v;
+        }
+
+        alSourcePlay(clip.sources[voice]);
+        clip.started[voice] = ++plays;
+    }
+
+    public void close() {
+        if (decoder != null) decoder.shutdownNow();
+        for (Clip clip : clips) {
+            if (clip.decoding != null) continue;
+            for (int source : clip.sources) alDeleteSources(source);
+            alDeleteBuffers(clip.buffer);
+        }
+        clips.clear();
+
+        alcMakeContextCurrent(0);
+        alcDestroyContext(alcContext);
+        alcCloseDevice(alcDevice);
+    }
+
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2016  KeyboardFire <andy@keyboardfire.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+import java.util.Random;
+
+import org.lwjgl.*;
+
+import org.lwjgl.stb.STBTTBakedChar;
+import org.lwjgl.stb.STBVorbisInfo;
+
+/**
+ * Microbenchmarks for the hot paths of the game: landing resolution,
+ * rotation, block instance packing, text layout and asset decoding. None of
+ * them need a window or GL context.
+ *
+ * Each benchmark is warmed up, then measured over several fixed-length
+ * iterations. Results are written as CSV, one row per benchmark, so that
+ * runs on different commits can be compared directly.
+ *
+ *     java Bench [-o results.csv] [name-prefix...]
+ */
+public class Bench {
+
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASURE_ITERATIONS = 10;
+    private static final long ITERATION_NANOS = 100_000_000;
+
+    private interface Op {
+        long run();
+    }
+
+    // results are accumulated here so the JIT can't discard the work
+    private static long sink;
+
+    private static final String ASSETS[] = {
+        "click.ogg", "slide.ogg", "pop.ogg", "fonts/OpenSans-Regular.ttf"
+    };
+
+    private static PrintStream out = System.out;
+    private static String[] filters = {};
+
+    private static void bench(String name, long bytesPerOp, Op op) {
+        if (filters.length > 0) {
+            boolean match = false;
+            for (String f : filters) match |= name.startsWith(f);
+            if (!match) return;
+        }
+
+        // pick a batch size that takes around a millisecond, so reading the
+        // clock doesn't dominate cheap operations
+        long batch = 1;
+        while (true) {
+            long start = System.nanoTime();
+            for (long i = 0; i < batch; ++i) sink += op.run();
+            if (System.nanoTime() - start >= 1_000_000 || batch >= 1L << 30) break;
+            batch *= 2;
+        }
+
+        double results[] = new double[MEASURE_ITERATIONS];
+        long totalOps = 0;
+        for (int iter = 0; iter < WARMUP_ITERATIONS + MEASURE_ITERATIONS; ++iter) {
+            long ops = 0, start = System.nanoTime(), elapsed;
+            do {
+                for (long i = 0; i < batch; ++i) sink += op.run();
+                ops += batch;
+            } while ((elapsed = System.nanoTime() - start) < ITERATION_NANOS);
+            if (iter >= WARMUP_ITERATIONS) {
+                results[iter - WARMUP_ITERATIONS] = (double)elapsed / ops;
+                totalOps += ops;
+            }
+        }
+
+        double mean = 0, min = Double.MAX_VALUE;
+        for (double r : results) {
+            mean += r / results.length;
+            min = Math.min(min, r);
+        }
+        double variance = 0;
+        for (double r : results) variance += (r - mean) * (r - mean) / (results.length - 1);
+
+        out.printf("%s,%d,%.3f,%.3f,%.3f,%d%n",
+                name, totalOps, mean, Math.sqrt(variance), min, bytesPerOp);
+        out.flush();
+        if (out != System.out) {
+            System.out.printf("%-32s %12.1f ns/op  +- %.1f%n", name, mean, Math.sqrt(variance));
+        }
+    }
+
+    /**
+     * A set of random boards in the shape the game produces, each built by
+     * landing a random number of random blocks and resolving every clear
+     * and cascade, so every side is a contiguous stack and no region at
+     * rest has three cells. A few colors make matches common.
+     */
+    private static Board[] sampleBoards(int count, int sides, int depth, int colors, Random random) {
+        Board boards[] = new Board[count];
+        for (int n = 0; n < count; ++n) {
+            Board board = boards[n] = new Board(sides, depth);
+            for (int landings = random.nextInt(sides * depth); landings > 0; --landings) {
+                int side = random.nextInt(sides), d = board.height(side);
+                if (d == depth) continue;
+                board.set(side, d, random.nextInt(colors));
+                board.resolve(side, d);
+            }
+        }
+        return boards;
+    }
+
+    private static void boardBenchmarks() {
+        boardBenchmarks("", Engine.NUM_SIDES, Engine.NUM_BLOCKS, 1024);
+        boardBenchmarks(":12x512", 12, 512, 64);
+
+        playBenchmark(6, 8);
+        playBenchmark(6, 64);
+        playBenchmark(6, 512);
+        playBenchmark(12, 512);
+    }
+
+    /**
+     * Lands random blocks on one board for as long as it lasts, resolving
+     * every clear and cascade, then starts again on an empty board. Unlike
+     * board.land this keeps the board's own state between landings, as the
+     * engine does.
+     *
+     * board.play.unionfind plays the same landings on a UnionFindBoard,
+     * which keeps its regions in a union-find forest rather than flood
+     * filling them, after checking that both boards play them identically.
+     */
+    private static void playBenchmark(int sides, int depth) {
+        Random random = new Random(3);
+        int landSide[] = new int[4096], landColor[] = new int[4096];
+        for (int n = 0; n < landSide.length; ++n) {
+            landSide[n] = random.nextInt(sides);
+            landColor[n] = random.nextInt(Board.NUM_COLORS);
+        }
+        Board empty = new Board(sides, depth), board = new Board(sides, depth);
+
+        int i[] = { 0 };
+        bench("board.play:" + sides + "x" + depth, 0, () -> {
+            int n = i[0]++ & (landSide.length - 1);
+            int side = landSide[n], d = board.height(side);
+            if (d == depth) {
+                board.copyFrom(empty);
+                return 0;
+            }
+            board.set(side, d, landColor[n]);
+            return board.resolve(side, d) + board.drops();
+        });
+
+        checkUnionFind(sides, depth, landSide, landColor);
+        UnionFindBoard unionEmpty = new UnionFindBoard(sides, depth),
+                unionBoard = new UnionFindBoard(sides, depth);
+        bench("board.play.unionfind:" + sides + "x" + depth, 0, () -> {
+            int n = i[0]++ & (landSide.length - 1);
+            int side = landSide[n], d = unionBoard.height(side);
+            if (d == depth) {
+                unionBoard.copyFrom(unionEmpty);
+                return 0;
+            }
+            unionBoard.set(side, d, landColor[n]);
+            return unionBoard.resolve(side, d) + unionBoard.drops();
+        });
+    }
+
+    /**
+     * Plays the landings of board.play a few times over on a Board and a
+     * UnionFindBoard, and fails unless both clear the same number of cells
+     * on every landing and end every game with the same cells.
+     */
+    private static void checkUnionFind(int sides, int depth, int landSide[], int landColor[]) {
+        Board board = new Board(sides, depth);
+        UnionFindBoard unionBoard = new UnionFindBoard(sides, depth);
+        for (int n = 0; n < 4 * landSide.length; ++n) {
+            int side = landSide[n % landSide.length], d = board.height(side);
+            if (d != unionBoard.height(side)) throw new IllegalStateException("heights differ");
+            if (d == depth || n == 4 * landSide.length - 1) {
+                for (int bit = 0; bit < sides * depth; ++bit) {
+                    if (board.colorAt(bit) != unionBoard.colorAt(bit)) {
+                        throw new IllegalStateException("boards differ at cell " + bit);
+                    }
+                }
+                board = new Board(sides, depth);
+                unionBoard = new UnionFindBoard(sides, depth);
+                continue;
+            }
+            int color = landColor[n % landColor.length];
+            board.set(side, d, color);
+            unionBoard.set(side, d, color);
+            if (board.resolve(side, d) != unionBoard.resolve(side, d)) {
+                throw new IllegalStateException("clears differ on landing " + n);
+            }
+        }
+    }
+
+    private static void boardBenchmarks(String suffix, int sides, int depth, int count) {
+        Random random = new Random(1);
+        Board samples[] = sampleBoards(count, sides, depth, 4, random);
+        int landSide[] = new int[count], landColor[] = new int[count];
+        for (int n = 0; n < count; ++n) {
+            landSide[n] = random.nextInt(sides);
+            landColor[n] = random.nextInt(4);
+        }
+        Board board = new Board(sides, depth);
+
+        int i[] = { 0 };
+        bench("board.copy" + suffix, 0, () -> {
+            int n = i[0]++ & (count - 1);
+            board.copyFrom(samples[n]);
+            return board.height(0);
+        });
+
+        // a union-find board copies its forest as well as its cells, which
+        // costs the same whatever is on the board
+        UnionFindBoard unionFrom = new UnionFindBoard(sides, depth),
+                unionTo = new UnionFindBoard(sides, depth);
+        bench("board.copy.unionfind" + suffix, 0, () -> {
+            unionTo.copyFrom(unionFrom);
+            return unionTo.height(0);
+        });
+
+        // what Engine asks about every falling block on every tick
+        bench("board.height" + suffix, 0, () -> {
+            Board sample = samples[i[0]++ & (count - 1)];
+            int sum = 0;
+            for (int s = 0; s < sides; ++s) sum += sample.height(s);
+            return sum;
+        });
+
+        // the work Engine does when a block lands, including the copy above
+        bench("board.land" + suffix, 0, () -> {
+            int n = i[0]++ & (count - 1);
+            board.copyFrom(samples[n]);
+            int side = landSide[n], d = board.height(side);
+            if (d == board.depth) return 0;
+            board.set(side, d, landColor[n]);
+            return board.resolve(side, d) + board.drops();
+        });
+
+        board.copyFrom(samples[0]);
+        bench("board.rotate" + suffix, 0, () -> {
+            board.rotate(1);
+            return board.height(0);
+        });
+    }
+
+    private static void engineBenchmarks() {
+        Engine engine = new Engine();
+        long tick[] = { 0 };
+        bench("engine.step", 0, () -> {
+            engine.step(1.0 / 60);
+            if (++tick[0] % 30 == 0) engine.rotate((tick[0] & 32) == 0 ? 1 : -1);
+            return engine.score;
+        });
+    }
+
+    private static void renderBenchmarks() {
+        Random random = new Random(2);
+        Board board = sampleBoards(1, Engine.NUM_SIDES, Engine.NUM_BLOCKS, Board.NUM_COLORS, random)[0];
+        long cells[][] = new long[Board.NUM_COLORS][board.words()];
+        for (int c = 0; c < Board.NUM_COLORS; ++c) {
+            for (int w = 0; w < board.words(); ++w) cells[c][w] = board.colorBits(c, w);
+        }
+        double falling[] = new double[8];
+        for (int f = 0; f < falling.length; ++f) falling[f] = random.nextDouble() * Engine.NUM_BLOCKS;
+
+        BlockRenderer renderer = new BlockRenderer(Engine.NUM_SIDES, Engine.NUM_BLOCKS);
+        bench("blocks.pack", 0, () -> {
+            renderer.begin();
+            for (int f = 0; f < falling.length; ++f) {
+                renderer.add(f % Engine.NUM_SIDES, falling[f], f % Board.NUM_COLORS, true);
+            }
+            for (int c = 0; c < Board.NUM_COLORS; ++c) renderer.addCells(cells[c], c, null);
+            return renderer.instanceCount();
+        });
+    }
+
+    private static void assetBenchmarks() throws IOException {
+        ByteBuffer font = Util.readByteBuffer("fonts/OpenSans-Regular.ttf");
+        ByteBuffer bitmap = BufferUtils.createByteBuffer(Text.BITMAP_W * Text.BITMAP_H);
+        STBTTBakedChar.Buffer cdata = Text.bakeFont(font, bitmap);
+
+        FloatBuffer vertices = BufferUtils.createFloatBuffer(64 * 4 * 4);
+        String text = "Score: 1234567890";
+        bench("text.layout", 0, () -> {
+            vertices.clear();
+            return Text.layout(cdata, text, vertices);
+        });
+        cdata.free();
+
+        for (String path : ASSETS) {
+            long size = Util.readByteBuffer(path).remaining();
+            bench("util.readByteBuffer:" + path, size, () -> {
+                try {
+                    return Util.readByteBuffer(path).remaining();
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            });
+        }
+
+        AssetPack.write(java.nio.file.Paths.get("bench.pack"), ASSETS);
+        AssetPack pack = AssetPack.open(java.nio.file.Paths.get("bench.pack"));
+        for (String path : ASSETS) {
+            bench("assetPack.get:" + path, pack.get(path).remaining(), () -> {
+                return pack.get(path).remaining();
+            });
+        }
+        java.nio.file.Files.delete(java.nio.file.Paths.get("bench.pack"));
+
+        STBVorbisInfo info = STBVorbisInfo.malloc();
+        for (String path : new String[] { "click.ogg", "slide.ogg", "pop.ogg" }) {
+            ByteBuffer vorbis = Util.readByteBuffer(path);
+            bench("util.decodeVorbis:" + path, vorbis.remaining(), () -> {
+                return Util.decodeVorbis(vorbis, info).remaining();
+            });
+        }
+        info.free();
+    }
+
+    public static void main(String[] args) throws IOException {
+        int a = 0;
+        if (args.length >= 2 && args[0].equals("-o")) {
+            out = new PrintStream(new FileOutputStream(args[1]));
+            a = 2;
+        }
+        filters = java.util.Arrays.copyOfRange(args, a, args.length);
+
+        out.println("benchmark,ops,ns_per_op,stddev,min,bytes_per_op");
+
+        boardBenchmarks();
+        engineBenchmarks();
+        renderBenchmarks();
+        assetBenchmarks();
+
+        if (out != System.out) out.close();
+        System.err.println("sink: " + sink);
+    }
+
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2016  KeyboardFire <andy@keyboardfire.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.nio.ByteBuffer;
+
+import org.lwjgl.*;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.*;
+import static org.lwjgl.opengl.GL33.*;
+import static org.lwjgl.opengl.GL42.*;
+
+/**
+ * Draws every block on the board, plus all falling blocks, with a single
+ * instanced draw call. Each block is one instance of a shared unit quad; the
+ * vertex shader places the quad from a compact 8-byte per-instance record:
+ *
+ *     byte 0    rot (unsigned byte)
+ *     byte 1    color (unsigned byte)
+ *     byte 2    flags (unsigned byte, bit 0 = ignore rotation)
+ *     byte 4-5  dist (half float)
+ *
+ * Bytes 3, 6 and 7 are padding to keep records 4-byte aligned.
+ *
+ * The records are packed into a buffer in memory and streamed to the GPU
+ * through a StreamBuffer, persistently mapped where the driver allows, so
+ * a frame costs one copy and one draw however many blocks are falling.
+ *
+ * Each side of the board spans an equal slice of the circle, and blocks
+ * shrink as the board gets deeper so that it always covers the same area
+ * as the default one. A record can hold up to 255 sides, and a half float
+ * holds every whole distance up to 2048.
+ */
+public class BlockRenderer {
+
+    private static final String vertexShaderSource =
+        "#version 330 core\n"
+      + "layout (location = 0) in vec2 corner;\n"
+      + "layout (location = 1) in uint rot;\n"
+      + "layout (location = 2) in uint colorIndex;\n"
+      + "layout (location = 3) in uint flags;\n"
+      + "layout (location = 4) in float dist;\n"
+      + "uniform float rotationOffset;\n"
+      + "uniform float sides;\n"
+      + "uniform float hexSize;\n"
+      + "uniform float blockSize;\n"
+      + "uniform vec3 colors[6];\n"
+      + "flat out vec3 blockColor;\n"
+      + "void main() {\n"
+      + "    float angle = (float(rot) + corner.x) * 6.28318530717959 / sides;\n"
+      + "    float radius = hexSize + (dist + corner.y) * blockSize;\n"
+      + "    vec2 position = vec2(cos(angle), sin(angle)) * radius;\n"
+      + "    float offset = (flags & 1u) != 0u ? 0.0 : rotationOffset;\n"
+      + "    gl_Position = vec4("
+      + "        position.x * cos(offset) + position.y * sin(offset),"
+      + "        position.y * cos(offset) - position.x * sin(offset),"
+      + "        0.0, 1.0);\n"
+      + "    blockColor = colors[colorIndex];\n"
+      + "}";
+    private int rotationOffsetUniform;
+
+    private static final String fragmentShaderSource =
+        "#version 330 core\n"
+      + "flat in vec3 blockColor;\n"
+      + "out vec4 color;\n"
+      + "void main() {\n"
+      + "    color = vec4(blockColor, 1.0f);\n"
+      + "}";
+
+    private static final int[][] colors = {
+        { 0xab, 0x46, 0x42 }, // red
+        { 0xdc, 0x96, 0x56 }, // orange
+        { 0xf7, 0xca, 0x88 }, // yellow
+        { 0xa1, 0xb5, 0x6c }, // green
+        { 0x7c, 0xaf, 0xc2 }, // blue
+        { 0xba, 0x8b, 0xaf }  // purple
+    };
+
+    // (angle step, radial step) of each corner of the unit quad
+    private static final float corners[] = {
+        0, 0,
+        0, 1,
+        1, 1,
+        1, 0
+    };
+
+    private static final int INSTANCE_BYTES = 8;
+    private static final int FLAG_IGNORE_ROTATION = 1;
+
+    private final int sides, depth;
+
+    private int shaderProgram, vao, cornerBuffer;
+    private StreamBuffer instanceStream;
+    private boolean persistentMapping = true;
+
+    private ByteBuffer instances = BufferUtils.createByteBuffer(64 * INSTANCE_BYTES);
+    private int instanceCount;
+
+    private int drawCalls;
+
+    public BlockRenderer(int sides, int depth) {
+        if (sides > 255 || depth > 2048) {
+            throw new IllegalArgumentException("can't draw a " + sides + "x" + depth + " board");
+        }
+        this.sides = sides;
+        this.depth = depth;
+    }
+
+    /**
+     * Whether instances may be streamed through a persistently mapped
+     * buffer, where supported. Takes effect at genVAO().
+     */
+    public void setPersistentMapping(boolean allow) {
+        persistentMapping = allow;
+    }
+
+    public void compileShader() {
+        shaderProgram = ShaderCache.program(vertexShaderSource, fragmentShaderSource);
+
+        rotationOffsetUniform = glGetUniformLocation(shaderProgram, "rotationOffset");
+
+        float colorValues[] = new float[colors.length * 3];
+        for (int c = 0; c < colors.length; ++c) {
+            for (int i = 0; i < 3; ++i) colorValues[c*3 + i] = colors[c][i] / 255f;
+        }
+
+        glUseProgram(shaderProgram);
+        glUniform1f(glGetUniformLocation(shaderProgram, "hexSize"), (float)Jexx.HEX_SIZE);
+        glUniform1f(glGetUniformLocation(shaderProgram, "sides"), sides);
+        glUniform1f(glGetUniformLocation(shaderProgram, "blockSize"),
+                (float)(Jexx.BLOCK_SIZE * Engine.NUM_BLOCKS / depth));
+        glUniform3fv(glGetUniformLocation(shaderProgram, "colors"), colorValues);
+    }
+
+    public void genVAO() {
+        vao = GLResources.genVertexArray();
+        glBindVertexArray(vao);
+
+        cornerBuffer = GLResources.genBuffer();
+        glBindBuffer(GL_ARRAY_BUFFER, cornerBuffer);
+        GLResources.bufferData(GL_ARRAY_BUFFER, cornerBuffer, corners, GL_STATIC_DRAW);
+        glVertexAttribPointer(0, 2, GL_FLOAT, false, 0, 0);
+        glEnableVertexAttribArray(0);
+
+        GLResources.quadIndices();
+
+        // room for a full board and as many blocks again falling
+        instanceStream = new StreamBuffer(GL_ARRAY_BUFFER,
+                2L * sides * depth * INSTANCE_BYTES, persistentMapping);
+        pointInstances();
+        for (int i = 1; i <= 4; ++i) {
+            glVertexAttribDivisor(i, 1);
+            glEnableVertexAttribArray(i);
+        }
+
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        glBindVertexArray(0);
+    }
+
+    /**
+     * Points the per-instance attributes of the bound vertex array at the
+     * start of the instance stream's buffer, which must be bound.
+     */
+    private void pointInstances() {
+        glVertexAttribIPointer(1, 1, GL_UNSIGNED_BYTE, INSTANCE_BYTES, 0);
+        glVertexAttribIPointer(2, 1, GL_UNSIGNED_BYTE, INSTANCE_BYTES, 1);
+        glVertexAttribIPointer(3, 1, GL_UNSIGNED_BYTE, INSTANCE_BYTES, 2);
+        glVertexAttribPointer(4, 1, GL_HALF_FLOAT, false, INSTANCE_BYTES, 4);
+    }
+
+    /**
+     * Starts a new frame, discarding all instances added since the last one.
+     */
+    public void begin() {
+        instances.clear();
+        instanceCount = 0;
+        drawCalls = 0;
+    }
+
+    public void add(int rot, double dist, int color, boolean ignoreRotation) {
+        if (color == -1) return;
+        if (!instances.hasRemaining()) {
+            ByteBuffer grown = BufferUtils.createByteBuffer(instances.capacity() * 2);
+            instances.flip();
+            grown.put(instances);
+            instances = grown;
+        }
+        instances
+            .put((byte)rot)
+            .put((byte)color)
+            .put((byte)(ignoreRotation ? FLAG_IGNORE_ROTATION : 0))
+            .put((byte)0)
+            .putShort(Util.toHalfFloat((float)dist))
+            .putShort((short)0);
+        ++instanceCount;
+    }
+
+    /**
+     * Adds a block of the given color for every cell set in a bitset laid
+     * out as in Board, each drawn lift[cell] blocks above its cell unless
+     * lift is null.
+     */
+    public void addCells(long bits[], int color, float lift[]) {
+        for (int w = 0; w < bits.length; ++w) {
+            for (long b = bits[w]; b != 0; b &= b - 1) {
+                int bit = w << 6 | Long.numberOfTrailingZeros(b);
+                add(bit / depth, bit % depth + (lift == null ? 0 : lift[bit]), color, false);
+            }
+        }
+    }
+
+    /**
+     * Uploads every instance added this frame and draws them all at once,
+     * rotating those that don't ignore rotation by rotationOffset.
+     */
+    public void draw(double rotationOffset) {
+        if (instanceCount == 0) return;
+        instances.flip();
+
+        glUseProgram(shaderProgram);
+        glUniform1f(rotationOffsetUniform, (float)rotationOffset);
+
+        glBindVertexArray(vao);
+        long generation = instanceStream.generation();
+        long offset = instanceStream.upload(instances);
+        if (instanceStream.generation() != generation) pointInstances();
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+
+        // a persistent stream puts each frame in a different region, which
+        // the instance attributes reach through the base instance
+        if (offset == 0) {
+            glDrawElementsInstanced(GL_TRIANGLES, 6, GL_UNSIGNED_INT, 0, instanceCount);
+        } else {
+            glDrawElementsInstancedBaseInstance(GL_TRIANGLES, 6, GL_UNSIGNED_INT, 0,
+                    instanceCount, (int)(offset / INSTANCE_BYTES));
+        }
+        instanceStream.fence();
+        glBindVertexArray(0);
+        ++drawCalls;
+    }
+
+    /**
+     * Number of draw calls issued since the last call to begin(). This is
+     * always 1 when anything was drawn, compared with one per block (and one
+     * program switch per block) when every block drew itself.
+     */
+    public int drawCalls() {
+        return drawCalls;
+    }
+
+    public int instanceCount() {
+        return instanceCount;
+    }
+
+    public String streamSummary() {
+        return instanceStream.summary();
+    }
+
+    public void delete() {
+        GLResources.releaseProgram(shaderProgram);
+        GLResources.releaseVertexArray(vao);
+        GLResources.releaseBuffer(cornerBuffer);
+        instanceStream.delete();
+        GLResources.releaseQuadIndices();
+        shaderProgram = vao = cornerBuffer = 0;
+    }
+
+}
@@ -0,0 +1,438 @@
+/*
+ * Copyright (C) 2016  KeyboardFire <andy@keyboardfire.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * The settled blocks, stored as one bitset per color. Cell (side, d) is
+ * bit side * depth + d, so every side is a contiguous run of bits. The
+ * bitsets are runs of longs in a single array, so a board can be any size
+ * and copying one is a single arraycopy.
+ *
+ * Rotating the board doesn't move any bits. Instead the board keeps a
+ * rotation offset, and every method taking a side resolves it through that
+ * offset: logical side s is stored in physical side s - offset. Cells, as
+ * returned by bit() and dropCell(), are physical bit numbers; use sideOf()
+ * and depthOf() to turn one back into a side and depth.
+ *
+ * Because blocks always land on the first empty cell of their side, and
+ * everything above a cleared cell drops straight down to fill the gap,
+ * each side is always a contiguous stack starting at depth 0.
+ */
+public class Board {
+
+    public static final int NUM_COLORS = 6;
+
+    public final int sides, depth;
+
+    // words per bitset; the bitset for color c starts at c * words, and
+    // the bitset of every occupied cell at NUM_COLORS * words
+    private final int words;
+    private final long bits[];
+    private final int occupied;
+    private int offset = 0;
+
+    // the number of blocks stacked on every physical side, kept up to date
+    // by set() and resolve() so finding where a block lands is one read
+    private final int heights[];
+
+    // the cells on the bottom and top of every side
+    private final long bottom[], top[];
+
+    // scratch for region(), reused by every call: the cells of the last
+    // region, in the order they were reached, and a bitmap of them
+    private final int region[];
+    private int regionSize = 0;
+    private final long inRegion[];
+
+    // scratch for resolve(): the cells to clear next and a bitmap of them,
+    // and the lowest of them on each side
+    private final int batch[];
+    private int batchSize = 0;
+    private final long inBatch[];
+    private final int lowest[];
+
+    // the blocks the last resolve() moved: where each ended up and the
+    // depth it started from, and for each cell, its entry if it has one
+    private final int dropCell[], dropFrom[], dropIndex[];
+    private int drops = 0;
+
+    public Board(int sides, int depth) {
+        if (sides < 1 || depth < 1 || (long)sides * depth > Integer.MAX_VALUE / 2) {
+            throw new IllegalArgumentException("bad board size " + sides + "x" + depth);
+        }
+        this.sides = sides;
+        this.depth = depth;
+
+        words = (sides * depth + 63) >>> 6;
+        bits = new long[(NUM_COLORS + 1) * words];
+        occupied = NUM_COLORS * words;
+        heights = new int[sides];
+
+        bottom = new long[words];
+        top = new long[words];
+        for (int s = 0; s < sides; ++s) {
+            int b = s * depth, t = b + depth - 1;
+            bottom[b >>> 6] |= 1L << b;
+            top[t >>> 6] |= 1L << t;
+        }
+
+        int cells = sides * depth;
+        region = new int[cells];
+        inRegion = new long[words];
+
+        batch = new int[cells];
+        inBatch = new long[words];
+        lowest = new int[sides];
+        java.util.Arrays.fill(lowest, depth);
+
+        dropCell = new int[cells];
+        dropFrom = new int[cells];
+        dropIndex = new int[cells];
+    }
+
+    /**
+     * Makes this board an exact copy of another board of the same size.
+     */
+    public void copyFrom(Board other) {
+        if (bits.length <= 16) {
+            // arraycopy's setup costs more than copying a few words by hand
+            for (int i = 0; i < bits.length; ++i) bits[i] = other.bits[i];
+        } else {
+            System.arraycopy(other.bits, 0, bits, 0, bits.length);
+        }
+        for (int p = 0; p < sides; ++p) heights[p] = other.heights[p];
+        offset = other.offset;
+    }
+
+    public int bit(int side, int d) {
+        int physical = side - offset;
+        if (physical < 0) physical += sides;
+        return physical * depth + d;
+    }
+
+    /**
+     * The logical side of a bit, taking the rotation offset into account.
+     */
+    public int sideOf(int bit) {
+        int side = bit / depth + offset;
+        return side >= sides ? side - sides : side;
+    }
+
+    public int depthOf(int bit) {
+        return bit % depth;
+    }
+
+    /**
+     * How many sides the board has been rotated by, between 0 and sides - 1.
+     * Physical side p is drawn at logical side p + offset().
+     */
+    public int offset() {
+        return offset;
+    }
+
+    public int color(int side, int d) {
+        return colorAt(bit(side, d));
+    }
+
+    public int colorAt(int bit) {
+        int w = bit >>> 6;
+        long mask = 1L << bit;
+        if ((bits[occupied + w] & mask) == 0) return -1;
+        for (int c = 0; c < NUM_COLORS; ++c, w += words) {
+            if ((bits[w] & mask) != 0) return c;
+        }
+        return -1;
+    }
+
+    /**
+     * The number of longs in the bitset of each color.
+     */
+    public int words() {
+        return words;
+    }
+
+    /**
+     * Word w of the bitset of every cell holding the given color, one bit
+     * per cell.
+     */
+    public long colorBits(int color, int w) {
+        return bits[color * words + w];
+    }
+
+    /**
+     * The number of blocks stacked on a side, which is also the depth of
+     * the first empty cell.
+     */
+    public int height(int side) {
+        int physical = side - offset;
+        return heights[physical < 0 ? physical + sides : physical];
+    }
+
+    /**
+     * Puts a block on a side. Sides are stacks, so d should be at most the
+     * side's height(); any other cell leaves height() wrong.
+     */
+    public void set(int side, int d, int color) {
+        int bit = bit(side, d), p = bit / depth;
+        bits[color * words + (bit >>> 6)] |= 1L << bit;
+        bits[occupied + (bit >>> 6)] |= 1L << bit;
+        if (d >= heights[p]) heights[p] = d + 1;
+    }
+
+    /**
+     * Empties a cell, leaving the side's height to the caller.
+     */
+    private void remove(int bit) {
+        long mask = ~(1L << bit);
+        for (int w = bit >>> 6; w < bits.length; w += words) bits[w] &= mask;
+    }
+
+    private int mod(int x, int y) {
+        return x % y + (x < 0 ? y : 0);
+    }
+
+    /**
+     * Rotates every ring of the board by one side. A positive dir moves the
+     * contents of side i to side i+1. Only the offset changes, so this takes
+     * the same time however big the board is.
+     */
+    public void rotate(int dir) {
+        offset = mod(offset + (dir > 0 ? 1 : dir < 0 ? -1 : 0), sides);
+    }
+
+    /**
+     * A 64-bit hash of every cell and the rotation offset. Two boards with
+     * the same hash are, for all practical purposes, the same board.
+     */
+    public long hash() {
+        long h = Rng.mix64(offset);
+        for (int w = 0; w < occupied; ++w) h = Rng.mix64(h ^ bits[w]);
+        return h;
+    }
+
+    /**
+     * Finds the same-colored connected region containing (side, d), and
+     * returns how many cells are in it. Cells are connected along a side
+     * and to the same depth on either neighbouring side, wrapping around
+     * between the first and last side.
+     *
+     * The region is grown breadth-first through a queue and a bitmap of
+     * cells already reached, both kept between calls, so this allocates
+     * nothing and takes time in proportion to the size of the region
+     * rather than of the board. In a game that is tiny: a region of three
+     * clears as soon as it forms, so a block lands next to regions of at
+     * most two cells, and a fill from it reaches at most seven. Keeping
+     * regions in a union-find structure would save that fill, but would
+     * have to be kept up to date on every set, clear and copy instead; the
+     * .unionfind variants of board.play and board.copy in Bench compare
+     * the two.
+     */
+    public int region(int side, int d) {
+        for (int i = 0; i < regionSize; ++i) inRegion[region[i] >>> 6] = 0;
+        regionSize = 0;
+
+        int start = bit(side, d);
+        int color = colorAt(start);
+        if (color == -1) return 0;
+        int same = color * words;
+
+        int stride = (sides - 1) * depth;
+        reach(start, same);
+        for (int head = 0; head < regionSize; ++head) {
+            int bit = region[head];
+            if (!has(bottom, 0, bit)) reach(bit - 1, same);
+            if (!has(top, 0, bit)) reach(bit + 1, same);
+            reach(bit < depth ? bit + stride : bit - depth, same);
+            reach(bit >= stride ? bit - stride : bit + depth, same);
+        }
+        return regionSize;
+    }
+
+    private void reach(int bit, int same) {
+        int w = bit >>> 6;
+        long mask = 1L << bit;
+        if ((bits[same + w] & mask) != 0 && (inRegion[w] & mask) == 0) {
+            inRegion[w] |= mask;
+            region[regionSize++] = bit;
+        }
+    }
+
+    /**
+     * Resolves a block just set at (side, d). If its region has at least
+     * three cells, the region is cleared and every block above it drops
+     * straight down into the gap. Any block that moved may now complete
+     * a region of its own, and all of those are cleared together in the
+     * next round, and so on until a round clears nothing. Returns the
+     * number of cells cleared in all.
+     *
+     * Only the sides that lost cells are compacted, and only the blocks
+     * that moved are checked for new regions, since nothing else changed.
+     * dropCell() and dropFrom() list where each moved block ended up.
+     */
+    public int resolve(int side, int d) {
+        drops = 0;
+        int size = region(side, d);
+        if (size < 3) return 0;
+        for (int i = 0; i < size; ++i) addToBatch(region[i]);
+
+        int cleared = 0;
+        while (batchSize > 0) {
+            cleared += batchSize;
+            for (int i = 0; i < batchSize; ++i) {
+                int bit = batch[i], p = bit / depth;
+                lowest[p] = Math.min(lowest[p], bit - p * depth);
+                remove(bit);
+                int k = dropIndex[bit];
+                if (k < drops && dropCell[k] == bit) dropCell[k] = -1;
+            }
+
+            for (int p = 0; p < sides; ++p) {
+                if (lowest[p] < depth) compact(p);
+            }
+            for (int i = 0; i < batchSize; ++i) inBatch[batch[i] >>> 6] = 0;
+            batchSize = 0;
+
+            // everything from the lowest gap up has moved
+            for (int p = 0; p < sides; ++p) {
+                if (lowest[p] == depth) continue;
+                for (int bit = p * depth + lowest[p], end = (p + 1) * depth; bit < end; ++bit) {
+                    if (!has(bits, occupied, bit)) break;
+                    if (has(inBatch, 0, bit)) continue;
+                    size = region(sideOf(bit), depthOf(bit));
+                    if (size < 3) continue;
+                    for (int i = 0; i < size; ++i) {
+                        if (!has(inBatch, 0, region[i])) addToBatch(region[i]);
+                    }
+                }
+                lowest[p] = depth;
+            }
+        }
+        sortDrops();
+        return cleared;
+    }
+
+    /**
+     * Puts the blocks that moved in order of the cells they ended up in,
+     * dropping those cleared on the way. In that order each block's new
+     * cell is above every earlier block's and below its own old one, so
+     * a caller can move things from cell to cell one block at a time.
+     */
+    private void sortDrops() {
+        for (int k = 0; k < drops; ++k) {
+            if (dropCell[k] != -1) addToBatch(dropCell[k]);
+        }
+        int n = 0;
+        for (int w = 0; w < words; ++w) {
+            for (long b = inBatch[w]; b != 0; b &= b - 1) {
+                batch[n++] = w << 6 | Long.numberOfTrailingZeros(b);
+            }
+            inBatch[w] = 0;
+        }
+        // every depth is read, parked in its cell's index, before any is
+        // overwritten
+        for (int i = 0; i < n; ++i) dropIndex[batch[i]] = dropFrom[dropIndex[batch[i]]];
+        for (int i = 0; i < n; ++i) {
+            int bit = batch[i];
+            dropCell[i] = bit;
+            dropFrom[i] = dropIndex[bit];
+            dropIndex[bit] = i;
+        }
+        drops = n;
+        batchSize = 0;
+    }
+
+    private void addToBatch(int bit) {
+        inBatch[bit >>> 6] |= 1L << bit;
+        batch[batchSize++] = bit;
+    }
+
+    /**
+     * Moves every block of physical side p above its lowest cleared cell
+     * down into the gaps left by the batch being cleared.
+     */
+    private void compact(int p) {
+        int base = p * depth, to = base + lowest[p];
+        for (int from = to + 1; from < base + depth; ++from) {
+            int color = colorAt(from);
+            if (color == -1) {
+                if (has(inBatch, 0, from)) continue;
+                break;
+            }
+            remove(from);
+            bits[color * words + (to >>> 6)] |= 1L << to;
+            bits[occupied + (to >>> 6)] |= 1L << to;
+
+            // a block moving again keeps the depth it first started from
+            int k = dropIndex[from];
+            if (k >= drops || dropCell[k] != from) {
+                k = drops++;
+                dropFrom[k] = from - base;
+            }
+            dropCell[k] = to;
+            dropIndex[to] = k;
+            ++to;
+        }
+        heights[p] = to - base;
+    }
+
+    /**
+     * The number of blocks the last resolve() moved down.
+     */
+    public int drops() {
+        return drops;
+    }
+
+    /**
+     * Where moved block i ended up.
+     */
+    public int dropCell(int i) {
+        return dropCell[i];
+    }
+
+    /**
+     * The depth moved block i was at before the last resolve().
+     */
+    public int dropFrom(int i) {
+        return dropFrom[i];
+    }
+
+    /**
+     * How many blocks touch at least one block of their own color.
+     */
+    public int connected() {
+        int n = 0, stride = (sides - 1) * depth;
+        for (int same = 0; same < occupied; same += words) {
+            for (int w = 0; w < words; ++w) {
+                for (long b = bits[same + w]; b != 0; b &= b - 1) {
+                    int bit = w << 6 | Long.numberOfTrailingZeros(b);
+                    if ((!has(bottom, 0, bit) && has(bits, same, bit - 1))
+                            || (!has(top, 0, bit) && has(bits, same, bit + 1))
+                            || has(bits, same, bit < depth ? bit + stride : bit - depth)
+                            || has(bits, same, bit >= stride ? bit - stride : bit + depth)) {
+                        ++n;
+                    }
+                }
+            }
+        }
+        return n;
+    }
+
+    // whether a bit is set in the bitset starting at bits[start]
+    private static boolean has(long bits[], int start, int bit) {
+        return (bits[start + (bit >>> 6)] & 1L << bit) != 0;
+    }
+
+}
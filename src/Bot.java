@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2016  KeyboardFire <andy@keyboardfire.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An automated player. For every block the engine spawns it picks the side
+ * the block should land on, by trying all of them and looking several
+ * blocks ahead: each later block may be any color, and the bot can rotate
+ * it onto any side, so the search alternates between the best side for a
+ * block and the average over the colors of the next one.
+ *
+ * Landings are resolved exactly as the engine resolves them, with
+ * Board.resolve(), so every cascade the bot foresees really happens.
+ *
+ * The upper plies of the search run in parallel on a ForkJoinPool, and
+ * every ply shares one transposition table of positions already averaged.
+ */
+public class Bot {
+
+    // what a position is worth to the search
+    private static final double LOST = -1e9;
+    private static final double SCORE_WEIGHT = 10;
+    private static final double CONNECTED_WEIGHT = 1;
+    private static final double HEIGHT_WEIGHT = 0.5;
+
+    // searches with at most this many plies left run on a single thread
+    private static final int SEQUENTIAL_PLIES = 2;
+
+    private static final int TABLE_BITS = 20;
+
+    private final int plies;
+    private final ForkJoinPool pool;
+
+    // pairs of longs: the key xor the value, then the value. Threads read
+    // and write entries without locking, and a torn entry fails the key
+    // check and is treated as a miss.
+    private final long table[] = new long[2 << TABLE_BITS];
+
+    private final LongAdder nodes = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+
+    public Bot(int plies, ForkJoinPool pool) {
+        if (plies < 1) throw new IllegalArgumentException("plies must be at least 1");
+        this.plies = plies;
+        this.pool = pool;
+    }
+
+    /**
+     * The logical side a block of the given color should land on.
+     */
+    public int choose(Board board, int color) {
+        Board copy = new Board(board.sides, board.depth);
+        copy.copyFrom(board);
+        return pool.invoke(new Best(copy, color, plies, true)).intValue();
+    }
+
+    /**
+     * How many times to rotate the board, and which way (the sign), so
+     * that a block falling towards side rot lands on what is now side
+     * target.
+     */
+    public static int rotations(int sides, int rot, int target) {
+        int k = ((rot - target) % sides + sides) % sides;
+        return k <= sides / 2 ? k : k - sides;
+    }
+
+    /**
+     * Landings simulated since the bot was made.
+     */
+    public long nodes() {
+        return nodes.sum();
+    }
+
+    /**
+     * Positions found in the transposition table since the bot was made.
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * The best a block of this color can do on this board, or, when side
+     * is set, the side that achieves it (as a Double).
+     */
+    private class Best extends RecursiveTask<Double> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Board board;
+        private final int color, plies;
+        private final boolean side;
+
+        Best(Board board, int color, int plies, boolean side) {
+            this.board = board;
+            this.color = color;
+            this.plies = plies;
+            this.side = side;
+        }
+
+        @Override
+        protected Double compute() {
+            if (plies <= SEQUENTIAL_PLIES && !side) {
+                return best(board, color, plies, scratch(plies));
+            }
+
+            int sides = board.sides;
+            double gained[] = new double[sides];
+            ArrayList<Average> next = new ArrayList<>();
+            for (int s = 0; s < sides; ++s) {
+                Board child = new Board(sides, board.depth);
+                child.copyFrom(board);
+                int score = land(child, s, color);
+                gained[s] = score < 0 ? LOST : score * SCORE_WEIGHT;
+                next.add(score < 0 || plies == 1 ? null : new Average(child, plies - 1));
+                if (score >= 0 && plies == 1) gained[s] += evaluate(child);
+            }
+            ArrayList<Average> forked = new ArrayList<>();
+            for (Average a : next) if (a != null) forked.add(a);
+            ForkJoinTask.invokeAll(forked);
+
+            int bestSide = 0;
+            double best = Double.NEGATIVE_INFINITY;
+            for (int s = 0; s < sides; ++s) {
+                double value = gained[s] + (next.get(s) == null ? 0 : next.get(s).join());
+                if (value > best) {
+                    best = value;
+                    bestSide = s;
+                }
+            }
+            return side ? bestSide : best;
+        }
+
+    }
+
+    /**
+     * The value of a board averaged over every color the next block could
+     * be.
+     */
+    private class Average extends RecursiveTask<Double> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Board board;
+        private final int plies;
+
+        Average(Board board, int plies) {
+            this.board = board;
+            this.plies = plies;
+        }
+
+        @Override
+        protected Double compute() {
+            if (plies <= SEQUENTIAL_PLIES) return average(board, plies, scratch(plies));
+
+            long key = key(board, plies);
+            double cached = lookup(key);
+            if (!Double.isNaN(cached)) return cached;
+
+            ArrayList<Best> colors = new ArrayList<>();
+            for (int c = 0; c < Board.NUM_COLORS; ++c) {
+                colors.add(new Best(board, c, plies, false));
+            }
+            ForkJoinTask.invokeAll(colors);
+            double sum = 0;
+            for (Best b : colors) sum += b.join();
+            double value = sum / Board.NUM_COLORS;
+            store(key, value);
+            return value;
+        }
+
+    }
+
+    /**
+     * A board to land blocks on for every ply of a sequential search, so
+     * that it doesn't allocate.
+     */
+    private Board[] scratch(int plies) {
+        return new Board[plies + 1];
+    }
+
+    private double best(Board board, int color, int plies, Board scratch[]) {
+        if (scratch[plies] == null) scratch[plies] = new Board(board.sides, board.depth);
+        Board child = scratch[plies];
+        double best = LOST;
+        for (int s = 0; s < board.sides; ++s) {
+            child.copyFrom(board);
+            int score = land(child, s, color);
+            if (score < 0) continue;
+            double value = score * SCORE_WEIGHT
+                + (plies == 1 ? evaluate(child) : average(child, plies - 1, scratch));
+            if (value > best) best = value;
+        }
+        return best;
+    }
+
+    private double average(Board board, int plies, Board scratch[]) {
+        long key = key(board, plies);
+        double cached = lookup(key);
+        if (!Double.isNaN(cached)) return cached;
+
+        double sum = 0;
+        for (int c = 0; c < Board.NUM_COLORS; ++c) sum += best(board, c, plies, scratch);
+        double value = sum / Board.NUM_COLORS;
+        store(key, value);
+        return value;
+    }
+
+    /**
+     * Lands a block on the first empty cell of a side and resolves any
+     * clears, returning the score gained or -1 if the side was full.
+     */
+    private int land(Board board, int side, int color) {
+        nodes.increment();
+        int d = board.height(side);
+        if (d >= board.depth) return -1;
+        board.set(side, d, color);
+        return board.resolve(side, d);
+    }
+
+    /**
+     * What a board is worth when the search stops looking ahead: blocks
+     * next to their own color are on their way to a clear, and tall sides
+     * are on their way to losing.
+     */
+    private static double evaluate(Board board) {
+        double value = CONNECTED_WEIGHT * board.connected();
+        for (int s = 0; s < board.sides; ++s) {
+            int h = board.height(s);
+            value -= HEIGHT_WEIGHT * h * h;
+        }
+        return value;
+    }
+
+    private static long key(Board board, int plies) {
+        return Rng.mix64(board.hash() + plies);
+    }
+
+    private double lookup(long key) {
+        int i = (int)key & ((1 << TABLE_BITS) - 1);
+        long value = table[2 * i + 1];
+        if ((table[2 * i] ^ value) != key) return Double.NaN;
+        hits.increment();
+        return Double.longBitsToDouble(value);
+    }
+
+    private void store(long key, double value) {
+        int i = (int)key & ((1 << TABLE_BITS) - 1);
+        long bits = Double.doubleToRawLongBits(value);
+        table[2 * i] = key ^ bits;
+        table[2 * i + 1] = bits;
+    }
+
+    /**
+     * Plays a game with the bot on every core and reports its score and
+     * search speed, then searches the positions from that game again with
+     * 1, 2, 4, ... threads to show how the search scales.
+     *
+     *     java Bot [plies] [ticks] [seed]
+     */
+    public static void main(String[] args) {
+        int plies = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        long ticks = args.length > 1 ? Long.parseLong(args[1]) : 120 * 60 * 10;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 0;
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        ArrayList<Board> positions = new ArrayList<>();
+        ArrayList<Integer> colors = new ArrayList<>();
+
+        Engine engine = new Engine(seed);
+        Bot bot = new Bot(plies, new ForkJoinPool(cores));
+        long start = System.nanoTime();
+        for (long t = 0; t < ticks && !engine.lost(); ++t) {
+            engine.step(Engine.TICK);
+            if (engine.spawnedSide() == -1) continue;
+
+            Board position = new Board(engine.board.sides, engine.board.depth);
+            position.copyFrom(engine.board);
+            positions.add(position);
+            colors.add(engine.spawnedColor());
+
+            int side = bot.choose(engine.board, engine.spawnedColor());
+            int k = rotations(engine.sides, engine.spawnedSide(), side);
+            for (; k != 0; k -= Integer.signum(k)) engine.rotate(Integer.signum(k));
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d-ply bot scored %d over %d blocks%s: %d nodes in %.3f s, %.0f nodes/s, %.1f%% table hits%n",
+                plies, engine.score, positions.size(), engine.lost() ? " and lost" : "",
+                bot.nodes(), seconds, bot.nodes() / seconds, 100.0 * bot.hits() / bot.nodes());
+
+        double base = 0;
+        for (int threads = 1; threads <= cores; threads = threads * 2 > cores && threads < cores ? cores : threads * 2) {
+            Bot b = new Bot(plies, new ForkJoinPool(threads));
+            start = System.nanoTime();
+            for (int i = 0; i < positions.size(); ++i) b.choose(positions.get(i), colors.get(i));
+            double rate = b.nodes() / ((System.nanoTime() - start) / 1e9);
+            if (threads == 1) base = rate;
+            System.out.printf("%2d threads: %.0f nodes/s, %.2fx%n", threads, rate, rate / base);
+        }
+    }
+
+}
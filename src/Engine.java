@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2016  KeyboardFire <andy@keyboardfire.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * The rules of the game, with no dependency on GLFW, OpenGL or OpenAL.
+ * Jexx drives an Engine with step() and rotate() and renders whatever state
+ * it is left in; it can equally well be driven headlessly.
+ */
+public class Engine {
+
+    public static final double BLOCK_SPEED = 3;
+    public static final double BLOCK_DELAY = 3;
+
+    // the fixed step Jexx runs the simulation at, whatever the frame rate
+    public static final double TICK = 1.0 / 120;
+
+    // the default board: a hexagon, eight blocks deep
+    public static final int NUM_SIDES = 6;
+    public static final int NUM_BLOCKS = 8;
+
+    public final int sides, depth;
+
+    // every block that spawns comes from here, so a game is reproducible
+    // from its seed and the rotations made during it
+    public final long seed;
+    private final Rng rng;
+
+    public final Board board;
+    public final FallingBlocks falling;
+    public int score = 0;
+
+    // the blocks clears moved down during the most recent step(): the cell
+    // each ended up in and the depth it fell from, for drawing the fall
+    private int dropCell[] = new int[16], dropFrom[] = new int[16];
+    private int drops = 0;
+
+    private double timeSinceBlock = 0;
+
+    // what happened during the most recent step()
+    private boolean landed, cleared;
+    private int landings, clearedCells;
+    private int spawnedColor, spawnedSide;
+    private long resolveNanos;
+
+    private boolean lost = false;
+
+    public Engine(long seed, int sides, int depth) {
+        this.seed = seed;
+        this.sides = sides;
+        this.depth = depth;
+        rng = new Rng(seed);
+
+        board = new Board(sides, depth);
+        // only spawned blocks fall now, and far fewer of them than there
+        // are cells can be on their way down at once
+        falling = new FallingBlocks(sides * depth);
+    }
+
+    public Engine(long seed) {
+        this(seed, NUM_SIDES, NUM_BLOCKS);
+    }
+
+    /**
+     * A game with a seed nobody chose.
+     */
+    public Engine() {
+        this(randomSeed());
+    }
+
+    public static long randomSeed() {
+        return Rng.mix64(System.nanoTime() ^ System.currentTimeMillis());
+    }
+
+    private void spawnBlocks() {
+        spawnedColor = rng.nextInt(Board.NUM_COLORS);
+        spawnedSide = rng.nextInt(sides);
+        falling.add(spawnedColor, spawnedSide, depth);
+    }
+
+    /**
+     * Advances the game by dt seconds: spawns new blocks, moves falling
+     * blocks, and lands any that hit the board, resolving whatever clears
+     * and cascades that sets off before the step returns.
+     */
+    public void step(double dt) {
+        landed = cleared = false;
+        landings = clearedCells = drops = 0;
+        spawnedColor = spawnedSide = -1;
+        resolveNanos = 0;
+
+        timeSinceBlock += dt;
+        if (timeSinceBlock >= BLOCK_DELAY) {
+            timeSinceBlock -= BLOCK_DELAY;
+            spawnBlocks();
+        }
+
+        for (int i = 0; i < falling.count;) {
+            double dist = falling.dist[i] -= BLOCK_SPEED * dt;
+            int rot = falling.rot[i];
+            // sides are contiguous stacks, so a block has hit one once it
+            // is anywhere below its top
+            if (dist <= 0 || dist < board.height(rot)) {
+                long start = System.nanoTime();
+                int color = falling.color[i];
+                // the last block moves into slot i, so don't advance
+                falling.remove(i);
+                landed = true;
+                ++landings;
+                int d = board.height(rot);
+                if (d < depth) {
+                    board.set(rot, d, color);
+                    int cells = board.resolve(rot, d);
+                    if (cells > 0) {
+                        cleared = true;
+                        score += cells;
+                        clearedCells += cells;
+                        addDrops();
+                    }
+                } else {
+                    lost = true;
+                }
+                resolveNanos += System.nanoTime() - start;
+            } else {
+                ++i;
+            }
+        }
+    }
+
+    private void addDrops() {
+        int n = board.drops();
+        if (drops + n > dropCell.length) {
+            int length = Math.max(dropCell.length * 2, drops + n);
+            dropCell = java.util.Arrays.copyOf(dropCell, length);
+            dropFrom = java.util.Arrays.copyOf(dropFrom, length);
+        }
+        for (int i = 0; i < n; ++i) {
+            dropCell[drops] = board.dropCell(i);
+            dropFrom[drops++] = board.dropFrom(i);
+        }
+    }
+
+    /**
+     * Rotates the board by one side. A positive dir rotates it the way the
+     * left arrow key does, a negative dir the way the right arrow key does.
+     */
+    public void rotate(int dir) {
+        board.rotate(dir);
+    }
+
+    /**
+     * Seconds of game time until the next block spawns. Until then, with
+     * nothing falling, no step() changes anything that can be seen.
+     */
+    public double timeToSpawn() {
+        return BLOCK_DELAY - timeSinceBlock;
+    }
+
+    /**
+     * Whether any falling block landed during the last step().
+     */
+    public boolean landed() {
+        return landed;
+    }
+
+    /**
+     * Whether any blocks were cleared during the last step().
+     */
+    public boolean cleared() {
+        return cleared;
+    }
+
+    /**
+     * The color of the block spawned during the last step(), or -1 if none
+     * was.
+     */
+    public int spawnedColor() {
+        return spawnedColor;
+    }
+
+    /**
+     * The side the block spawned during the last step() is falling
+     * towards, or -1 if none was.
+     */
+    public int spawnedSide() {
+        return spawnedSide;
+    }
+
+    /**
+     * How many blocks landed during the last step().
+     */
+    public int landings() {
+        return landings;
+    }
+
+    /**
+     * How many cells were cleared during the last step().
+     */
+    public int clearedCells() {
+        return clearedCells;
+    }
+
+    /**
+     * How many blocks clears moved down during the last step(), landing
+     * by landing and in Board's order within each. A block can appear
+     * more than once if a later landing in the same step moved it again.
+     */
+    public int drops() {
+        return drops;
+    }
+
+    /**
+     * The physical cell, as Board numbers them, moved block i ended up in.
+     */
+    public int dropCell(int i) {
+        return dropCell[i];
+    }
+
+    /**
+     * The depth moved block i fell from.
+     */
+    public int dropFrom(int i) {
+        return dropFrom[i];
+    }
+
+    /**
+     * Nanoseconds spent landing blocks and resolving clears during the last
+     * step(), as part of the time step() took.
+     */
+    public long resolveNanos() {
+        return resolveNanos;
+    }
+
+    /**
+     * Whether a block has ever landed on a full column. Nothing stops the
+     * game yet; it is up to the caller what to do about it.
+     */
+    public boolean lost() {
+        return lost;
+    }
+
+    /**
+     * Runs the engine headlessly as fast as possible and reports how many
+     * ticks per second it manages, pressing a random arrow key now and then
+     * and starting a new game whenever one is lost. The same seed always
+     * plays the same games.
+     *
+     *     java Engine [ticks] [dt] [seed] [sides] [depth]
+     */
+    public static void main(String[] args) {
+        long ticks = args.length > 0 ? Long.parseLong(args[0]) : 10_000_000;
+        double dt = args.length > 1 ? Double.parseDouble(args[1]) : 1.0 / 60;
+        Rng rng = new Rng(args.length > 2 ? Long.parseLong(args[2]) : 0);
+        int sides = args.length > 3 ? Integer.parseInt(args[3]) : NUM_SIDES;
+        int depth = args.length > 4 ? Integer.parseInt(args[4]) : NUM_BLOCKS;
+        Rng keys = rng.split();
+
+        Engine engine = new Engine(rng.nextLong(), sides, depth);
+        long games = 1, score = 0, landings = 0, resolveNanos = 0;
+        long start = System.nanoTime();
+        for (long t = 0; t < ticks; ++t) {
+            engine.step(dt);
+            landings += engine.landings();
+            resolveNanos += engine.resolveNanos();
+            if (t % 30 == 0) engine.rotate(keys.nextInt(2) == 0 ? 1 : -1);
+            if (engine.lost()) {
+                score += engine.score;
+                engine = new Engine(rng.nextLong(), sides, depth);
+                ++games;
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        score += engine.score;
+
+        System.out.printf("%d ticks in %.3f s: %.0f ticks/s, %d games, total score %d, %.2f us per landing%n",
+                ticks, seconds, ticks / seconds, games, score,
+                landings == 0 ? 0 : resolveNanos / 1e3 / landings);
+    }
+
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2016  KeyboardFire <andy@keyboardfire.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Arrays;
+
+/**
+ * Every block currently falling, kept as parallel arrays of primitives.
+ * Blocks are removed by moving the last block into their slot, so indices
+ * are not stable across remove(); iterate by index and don't advance after
+ * removing.
+ *
+ * The arrays are sized up front for the worst case the board allows, so
+ * adding and removing blocks never allocates during a game.
+ */
+public class FallingBlocks {
+
+    public int rot[], color[];
+    public double dist[];
+    public int count = 0;
+
+    public FallingBlocks(int capacity) {
+        rot = new int[capacity];
+        color = new int[capacity];
+        dist = new double[capacity];
+    }
+
+    public void add(int color, int rot, double dist) {
+        if (count == this.rot.length) {
+            // can only happen if the capacity was underestimated
+            int capacity = Math.max(1, count * 2);
+            this.rot = Arrays.copyOf(this.rot, capacity);
+            this.color = Arrays.copyOf(this.color, capacity);
+            this.dist = Arrays.copyOf(this.dist, capacity);
+        }
+        this.rot[count] = rot;
+        this.color[count] = color;
+        this.dist[count] = dist;
+        ++count;
+    }
+
+    public void remove(int i) {
+        --count;
+        rot[i] = rot[count];
+        color[i] = color[count];
+        dist[i] = dist[count];
+    }
+
+}
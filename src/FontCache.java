@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2016  KeyboardFire <andy@keyboardfire.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import java.util.zip.CRC32C;
+
+import org.lwjgl.*;
+
+import org.lwjgl.stb.STBTTBakedChar;
+import static org.lwjgl.system.MemoryUtil.*;
+
+/**
+ * Keeps baked font atlases (the bitmap and the per-character metrics) in
+ * the cache directory, so that only the first launch has to rasterize the
+ * font. Later launches memory-map the cached file and hand the bitmap
+ * straight to the GPU.
+ *
+ * Atlases are keyed by a hash of the font file and every parameter the
+ * bake depends on, so changing the font or its size bakes a new one.
+ *
+ *     int    magic
+ *     int    version
+ *     bytes  NUM_CHARS * STBTTBakedChar.SIZEOF character metrics
+ *     bytes  BITMAP_W * BITMAP_H bitmap
+ */
+public class FontCache {
+
+    private static final int MAGIC = 0x4a584641; // "JXFA"
+    private static final int VERSION = 1;
+    private static final int HEADER = 8;
+
+    public static final int NUM_CHARS = 96;
+
+    public static class Atlas {
+        public STBTTBakedChar.Buffer cdata;
+        public ByteBuffer bitmap;
+    }
+
+    // CRC32C rather than a cryptographic hash: this runs on every launch
+    // before the JIT has warmed up, when hashing the font with SHA-256 would
+    // take longer than baking it
+    private static String key(ByteBuffer font) {
+        CRC32C crc = new CRC32C();
+        crc.update(font.duplicate());
+        return String.format("%08x-%d-%d-%dx%d-%d-%d%s", crc.getValue(),
+                font.remaining(), Text.FONT_HEIGHT, Text.BITMAP_W, Text.BITMAP_H,
+                NUM_CHARS, STBTTBakedChar.SIZEOF,
+                ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? "le" : "be");
+    }
+
+    /**
+     * Returns the atlas for the font at filePath, from the cache if
+     * possible. The caller owns (and must free) the returned cdata.
+     */
+    public static Atlas load(String filePath) throws IOException {
+        ByteBuffer font = AssetPack.load(filePath);
+        Path file = Util.cacheDir().resolve("fonts").resolve(key(font) + ".atlas");
+
+        Atlas atlas = map(file);
+        if (atlas != null) return atlas;
+
+        atlas = new Atlas();
+        atlas.bitmap = BufferUtils.createByteBuffer(Text.BITMAP_W * Text.BITMAP_H);
+        atlas.cdata = Text.bakeFont(font, atlas.bitmap);
+        store(atlas, file);
+        return atlas;
+    }
+
+    private static long size() {
+        return HEADER + (long)NUM_CHARS * STBTTBakedChar.SIZEOF
+            + (long)Text.BITMAP_W * Text.BITMAP_H;
+    }
+
+    private static Atlas map(Path file) {
+        if (!Files.isRegularFile(file)) return null;
+
+        MappedByteBuffer mapped;
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (fc.size() != size()) return null;
+            mapped = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+        } catch (IOException ex) {
+            return null;
+        }
+        mapped.order(ByteOrder.nativeOrder());
+        if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) return null;
+
+        Atlas atlas = new Atlas();
+        int metrics = NUM_CHARS * STBTTBakedChar.SIZEOF;
+        atlas.cdata = STBTTBakedChar.malloc(NUM_CHARS);
+        memCopy(memAddress(mapped) + HEADER, atlas.cdata.address(), metrics);
+
+        mapped.position(HEADER + metrics);
+        atlas.bitmap = mapped.slice();
+        return atlas;
+    }
+
+    private static void store(Atlas atlas, Path file) {
+        int metrics = NUM_CHARS * STBTTBakedChar.SIZEOF;
+        ByteBuffer data = ByteBuffer.allocate((int)size()).order(ByteOrder.nativeOrder());
+        data.putInt(MAGIC).putInt(VERSION);
+        data.put(memByteBuffer(atlas.cdata.address(), metrics));
+        data.put(atlas.bitmap.duplicate());
+
+        try {
+            Files.createDirectories(file.getParent());
+            Path tmp = Files.createTempFile(file.getParent(), "atlas", ".tmp");
+            Files.write(tmp, data.array());
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            System.err.println("could not cache font atlas: " + ex);
+        }
+    }
+
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2016  KeyboardFire <andy@keyboardfire.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL21.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL32.*;
+
+import static org.lwjgl.system.MemoryUtil.*;
+
+/**
+ * Records every frame without stalling the render loop. capture() starts
+ * an asynchronous glReadPixels into one of a ring of pixel buffer objects
+ * and fences it; a few frames later, once the fence has passed, the pixels
+ * are copied out of the buffer and handed to a background thread, which
+ * writes them either as one raw RGBA stream (bottom row first, as GL
+ * returns them) or, if the output is a directory, as numbered PPM images.
+ *
+ * With offscreen set, the game is drawn into a framebuffer object instead
+ * of the window, captured from there, and then blitted to the window. Use
+ * that where the window's own framebuffer can't be read back reliably,
+ * such as a hidden window under Mesa's llvmpipe on a headless X server.
+ *
+ * If the writer falls behind, frames are dropped rather than waited for.
+ */
+public class FrameCapture {
+
+    // readbacks in flight; the GPU has this many frames to finish one
+    private static final int RING = 3;
+    // frames copied out and waiting for the writer
+    private static final int QUEUE = 8;
+
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final int width, height, frameBytes;
+    private final boolean offscreen;
+
+    private final int pbos[] = new int[RING];
+    private final long fences[] = new long[RING];
+    private int head = 0, pending = 0;
+
+    private int framebuffer = 0, renderbuffer = 0;
+
+    private final ArrayBlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(QUEUE);
+    private final ArrayBlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<>(QUEUE + 1);
+    private Thread writer;
+    private volatile IOException error = null;
+
+    private long captured = 0, dropped = 0, stalls = 0;
+
+    public FrameCapture(int width, int height, boolean offscreen) {
+        this.width = width;
+        this.height = height;
+        this.offscreen = offscreen;
+        frameBytes = width * height * 4;
+    }
+
+    /**
+     * Creates the GL objects and starts the writer thread. The output is
+     * written as PPM images if out is an existing directory, and as a raw
+     * stream otherwise.
+     */
+    public void start(Path out) throws IOException {
+        boolean sequence = Files.isDirectory(out);
+        FileChannel raw = sequence ? null : FileChannel.open(out, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        for (int i = 0; i < RING; ++i) {
+            pbos[i] = GLResources.genBuffer();
+            glBindBuffer(GL_PIXEL_PACK_BUFFER, pbos[i]);
+            GLResources.bufferData(GL_PIXEL_PACK_BUFFER, pbos[i], frameBytes, GL_STREAM_READ);
+        }
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+
+        if (offscreen) {
+            renderbuffer = GLResources.genRenderbuffer();
+            glBindRenderbuffer(GL_RENDERBUFFER, renderbuffer);
+            glRenderbufferStorage(GL_RENDERBUFFER, GL_RGBA8, width, height);
+            GLResources.setRenderbufferBytes(renderbuffer, frameBytes);
+            glBindRenderbuffer(GL_RENDERBUFFER, 0);
+
+            framebuffer = GLResources.genFramebuffer();
+            glBindFramebuffer(GL_FRAMEBUFFER, framebuffer);
+            glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_RENDERBUFFER, renderbuffer);
+            if (glCheckFramebufferStatus(GL_FRAMEBUFFER) != GL_FRAMEBUFFER_COMPLETE) {
+                throw new RuntimeException("offscreen framebuffer incomplete");
+            }
+            glBindFramebuffer(GL_FRAMEBUFFER, 0);
+        }
+
+        for (int i = 0; i < QUEUE; ++i) free.add(memAlloc(frameBytes));
+
+        writer = new Thread(() -> write(raw, sequence ? out : null), "frame capture");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Call before drawing a frame, to draw it offscreen if need be.
+     */
+    public void bind() {
+        if (offscreen) glBindFramebuffer(GL_FRAMEBUFFER, framebuffer);
+    }
+
+    /**
+     * Call after drawing a frame, before swapping buffers. Starts reading
+     * the frame back, and passes on any earlier frames that have arrived.
+     */
+    public void capture() {
+        // the oldest readback must finish before its buffer is reused
+        if (pending == RING) retire(true);
+        while (pending > 0 && retire(false)) {}
+
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, pbos[head]);
+        glReadPixels(0, 0, width, height, GL_RGBA, GL_UNSIGNED_BYTE, 0);
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+        fences[head] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        head = (head + 1) % RING;
+        ++pending;
+
+        if (offscreen) {
+            glBindFramebuffer(GL_READ_FRAMEBUFFER, framebuffer);
+            glBindFramebuffer(GL_DRAW_FRAMEBUFFER, 0);
+            glBlitFramebuffer(0, 0, width, height, 0, 0, width, height,
+                    GL_COLOR_BUFFER_BIT, GL_NEAREST);
+            glBindFramebuffer(GL_FRAMEBUFFER, 0);
+        }
+    }
+
+    /**
+     * Hands the oldest readback to the writer if it has finished, or
+     * whenever it finishes if wait is set. Returns whether it was handed
+     * over.
+     */
+    private boolean retire(boolean wait) {
+        int slot = (head - pending + RING) % RING;
+        if (glClientWaitSync(fences[slot], 0, 0) == GL_TIMEOUT_EXPIRED) {
+            if (!wait) return false;
+            ++stalls;
+            glClientWaitSync(fences[slot], GL_SYNC_FLUSH_COMMANDS_BIT, Long.MAX_VALUE);
+        }
+        glDeleteSync(fences[slot]);
+        --pending;
+
+        ByteBuffer frame = free.poll();
+        if (frame == null) {
+            ++dropped;
+            return true;
+        }
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, pbos[slot]);
+        long pixels = nglMapBufferRange(GL_PIXEL_PACK_BUFFER, 0, frameBytes, GL_MAP_READ_BIT);
+        if (pixels != NULL) {
+            memCopy(pixels, memAddress(frame), frameBytes);
+            full.add(frame);
+            ++captured;
+        } else {
+            free.add(frame);
+            ++dropped;
+        }
+        glUnmapBuffer(GL_PIXEL_PACK_BUFFER);
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+        return true;
+    }
+
+    private void write(FileChannel raw, Path dir) {
+        byte row[] = new byte[width * 3];
+        ByteBuffer frame = null;
+        try {
+            for (long n = 0;; ++n) {
+                frame = full.take();
+                if (frame == END) break;
+                if (raw != null) {
+                    frame.clear();
+                    while (frame.hasRemaining()) raw.write(frame);
+                } else {
+                    writePpm(dir.resolve(String.format("frame%06d.ppm", n)), frame, row);
+                }
+                free.add(frame);
+                frame = null;
+            }
+        } catch (IOException ex) {
+            // keep nothing, so every later frame is dropped
+            error = ex;
+        } catch (InterruptedException ex) {
+        } finally {
+            // the frame a failed write was holding is in neither queue
+            if (frame != null && frame != END) memFree(frame);
+            try {
+                if (raw != null) raw.close();
+            } catch (IOException ex) {
+                if (error == null) error = ex;
+            }
+        }
+    }
+
+    /**
+     * Writes an RGBA frame as a binary PPM, flipping it the right way up and
+     * dropping alpha.
+     */
+    private void writePpm(Path path, ByteBuffer frame, byte row[]) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(path), 1 << 16)) {
+            out.write(String.format("P6\n%d %d\n255\n", width, height).getBytes("US-ASCII"));
+            for (int y = height - 1; y >= 0; --y) {
+                int start = y * width * 4;
+                for (int x = 0; x < width; ++x) {
+                    row[3 * x] = frame.get(start + 4 * x);
+                    row[3 * x + 1] = frame.get(start + 4 * x + 1);
+                    row[3 * x + 2] = frame.get(start + 4 * x + 2);
+                }
+                out.write(row);
+            }
+        }
+    }
+
+    public String summary() {
+        return String.format("%d frames captured, %d dropped, %d stalls", captured, dropped, stalls);
+    }
+
+    /**
+     * Waits for every readback and for the writer to finish, then deletes
+     * the GL objects. Returns any error the writer ran into.
+     */
+    public IOException close() {
+        while (pending > 0) retire(true);
+
+        if (writer != null) {
+            full.add(END);
+            try {
+                writer.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (ByteBuffer frame; (frame = free.poll()) != null;) memFree(frame);
+        for (ByteBuffer frame; (frame = full.poll()) != null;) if (frame != END) memFree(frame);
+
+        for (int i = 0; i < RING; ++i) {
+            GLResources.releaseBuffer(pbos[i]);
+            pbos[i] = 0;
+        }
+        GLResources.releaseFramebuffer(framebuffer);
+        GLResources.releaseRenderbuffer(renderbuffer);
+        framebuffer = renderbuffer = 0;
+        return error;
+    }
+
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2016  KeyboardFire <andy@keyboardfire.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.io.PrintStream;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Times each phase of every frame, keeping a latency histogram per phase,
+ * and emits JFR events for frames, landings and clears. The events cost
+ * next to nothing unless a JFR recording is running, e.g. with
+ *
+ *     java -XX:StartFlightRecording=filename=jexx.jfr Jexx
+ *
+ * Call beginFrame() at the top of the frame, then endPhase() as each phase
+ * finishes, then endFrame(). A frame that is skipped before it draws is
+ * never ended, and so is never recorded.
+ */
+public class FrameStats {
+
+    public enum Phase {
+        POLL,       // glfwPollEvents
+        UPDATE,     // moving falling blocks and spawning, excluding...
+        RESOLVE,    // ...landing, flood fill and clearing
+        DRAW,       // the hexagon and every block
+        TEXT,       // score text and this overlay
+        CAPTURE,    // starting and collecting frame capture readbacks
+        SWAP,       // glfwSwapBuffers, which includes waiting for v-sync
+        FRAME       // all of the above
+    }
+
+    @Name("jexx.Frame")
+    @Label("Frame")
+    @Category("Jexx")
+    static class FrameEvent extends Event {
+        @Label("Poll") @Timespan long poll;
+        @Label("Update") @Timespan long update;
+        @Label("Resolve") @Timespan long resolve;
+        @Label("Draw") @Timespan long draw;
+        @Label("Text") @Timespan long text;
+        @Label("Capture") @Timespan long capture;
+        @Label("Swap") @Timespan long swap;
+        @Label("Falling Blocks") int fallingBlocks;
+    }
+
+    @Name("jexx.Landing")
+    @Label("Landing")
+    @Category("Jexx")
+    static class LandingEvent extends Event {
+        @Label("Landings") int landings;
+        @Label("Resolve Time") @Timespan long resolve;
+    }
+
+    @Name("jexx.Clear")
+    @Label("Clear")
+    @Category("Jexx")
+    static class ClearEvent extends Event {
+        @Label("Cells Cleared") int cells;
+        @Label("Score") int score;
+    }
+
+    private final Histogram histograms[] = new Histogram[Phase.values().length];
+    private final long current[] = new long[Phase.values().length];
+
+    private long frameStart, phaseStart;
+    private FrameEvent frameEvent;
+
+    public FrameStats() {
+        for (int i = 0; i < histograms.length; ++i) histograms[i] = new Histogram();
+    }
+
+    public void beginFrame() {
+        frameEvent = new FrameEvent();
+        frameEvent.begin();
+        frameStart = phaseStart = System.nanoTime();
+    }
+
+    /**
+     * Records the time since the previous phase ended (or the frame began)
+     * as the given phase.
+     */
+    public void endPhase(Phase phase) {
+        long now = System.nanoTime();
+        current[phase.ordinal()] = now - phaseStart;
+        phaseStart = now;
+    }
+
+    /**
+     * Moves nanos out of the UPDATE phase just ended and into RESOLVE, for
+     * time the engine reports spending on landings during its step.
+     */
+    public void splitResolve(long nanos) {
+        current[Phase.UPDATE.ordinal()] -= nanos;
+        current[Phase.RESOLVE.ordinal()] = nanos;
+    }
+
+    /**
+     * Reports what the engine did during this frame's step.
+     */
+    public void engineStepped(Engine engine) {
+        if (engine.landings() > 0) {
+            LandingEvent landing = new LandingEvent();
+            if (landing.shouldCommit()) {
+                landing.landings = engine.landings();
+                landing.resolve = engine.resolveNanos();
+                landing.commit();
+            }
+        }
+        if (engine.clearedCells() > 0) {
+            ClearEvent clear = new ClearEvent();
+            if (clear.shouldCommit()) {
+                clear.cells = engine.clearedCells();
+                clear.score = engine.score;
+                clear.commit();
+            }
+        }
+    }
+
+    public void endFrame(int fallingBlocks) {
+        current[Phase.FRAME.ordinal()] = System.nanoTime() - frameStart;
+        for (int i = 0; i < current.length; ++i) {
+            histograms[i].record(current[i]);
+        }
+
+        frameEvent.end();
+        if (frameEvent.shouldCommit()) {
+            frameEvent.poll = current[Phase.POLL.ordinal()];
+            frameEvent.update = current[Phase.UPDATE.ordinal()];
+            frameEvent.resolve = current[Phase.RESOLVE.ordinal()];
+            frameEvent.draw = current[Phase.DRAW.ordinal()];
+            frameEvent.text = current[Phase.TEXT.ordinal()];
+            frameEvent.capture = current[Phase.CAPTURE.ordinal()];
+            frameEvent.swap = current[Phase.SWAP.ordinal()];
+            frameEvent.fallingBlocks = fallingBlocks;
+            frameEvent.commit();
+        }
+
+        java.util.Arrays.fill(current, 0);
+    }
+
+    public Histogram histogram(Phase phase) {
+        return histograms[phase.ordinal()];
+    }
+
+    /**
+     * One line per phase with p50, p99 and max in microseconds, for the
+     * on-screen overlay.
+     */
+    public String summary() {
+        StringBuilder sb = new StringBuilder("phase      p50    p99    max (us)\n");
+        for (Phase phase : Phase.values()) {
+            Histogram h = histogram(phase);
+            sb.append(String.format("%-8s %6d %6d %6d%n", phase.name().toLowerCase(),
+                        h.percentile(0.5) / 1000, h.percentile(0.99) / 1000, h.max() / 1000));
+        }
+        return sb.toString();
+    }
+
+    public void writeCsv(String path) throws IOException {
+        try (PrintStream out = new PrintStream(path)) {
+            out.println("phase,count,mean_ns,p50_ns,p90_ns,p99_ns,p999_ns,max_ns");
+            for (Phase phase : Phase.values()) {
+                Histogram h = histogram(phase);
+                out.printf("%s,%d,%.0f,%d,%d,%d,%d,%d%n", phase.name().toLowerCase(),
+                        h.count(), h.mean(), h.percentile(0.5), h.percentile(0.9),
+                        h.percentile(0.99), h.percentile(0.999), h.max());
+            }
+        }
+    }
+
+}
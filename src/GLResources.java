@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2016  KeyboardFire <andy@keyboardfire.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.nio.FloatBuffer;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL44.*;
+
+/**
+ * Every GL object the game creates goes through here, so that we know how
+ * many are alive and how much memory they hold.
+ *
+ * Released buffers and textures are kept and handed out again by the next
+ * genBuffer() or genTexture(), since their storage is respecified anyway.
+ * Vertex arrays, programs, framebuffers and renderbuffers carry state that
+ * would leak into their next user, so those are deleted on release instead,
+ * as are buffers given immutable storage with bufferStorage(), which can't
+ * be respecified.
+ *
+ * Immutable data used by several objects, such as index buffers, can be
+ * shared by key with sharedBuffer().
+ */
+public class GLResources {
+
+    public enum Kind { VERTEX_ARRAY, BUFFER, PROGRAM, TEXTURE, FRAMEBUFFER, RENDERBUFFER }
+
+    private static final int live[] = new int[Kind.values().length];
+
+    private static final HashMap<Integer, Long> bufferBytes = new HashMap<>();
+    private static final HashMap<Integer, Long> textureBytes = new HashMap<>();
+    private static final HashMap<Integer, Long> renderbufferBytes = new HashMap<>();
+    private static long liveBytes = 0;
+
+    private static final ArrayDeque<Integer> freeBuffers = new ArrayDeque<>();
+    private static final ArrayDeque<Integer> freeTextures = new ArrayDeque<>();
+    private static final HashSet<Integer> immutableBuffers = new HashSet<>();
+
+    // key -> { buffer, reference count }
+    private static final HashMap<String, int[]> shared = new HashMap<>();
+
+    // two triangles making a quad out of its four corners
+    private static final int quadIndices[] = {
+        0, 1, 2,
+        0, 2, 3
+    };
+
+    public static int genVertexArray() {
+        ++live[Kind.VERTEX_ARRAY.ordinal()];
+        return glGenVertexArrays();
+    }
+
+    public static void releaseVertexArray(int vao) {
+        if (vao == 0) return;
+        --live[Kind.VERTEX_ARRAY.ordinal()];
+        glDeleteVertexArrays(vao);
+    }
+
+    public static int genBuffer() {
+        ++live[Kind.BUFFER.ordinal()];
+        Integer buffer = freeBuffers.poll();
+        return buffer != null ? buffer : glGenBuffers();
+    }
+
+    public static void releaseBuffer(int buffer) {
+        if (buffer == 0) return;
+        --live[Kind.BUFFER.ordinal()];
+        setBufferBytes(buffer, 0);
+        if (immutableBuffers.remove(buffer)) {
+            glDeleteBuffers(buffer);
+        } else {
+            freeBuffers.push(buffer);
+        }
+    }
+
+    public static int createProgram() {
+        ++live[Kind.PROGRAM.ordinal()];
+        return glCreateProgram();
+    }
+
+    public static void releaseProgram(int program) {
+        if (program == 0) return;
+        --live[Kind.PROGRAM.ordinal()];
+        glDeleteProgram(program);
+    }
+
+    public static int genTexture() {
+        ++live[Kind.TEXTURE.ordinal()];
+        Integer texture = freeTextures.poll();
+        return texture != null ? texture : glGenTextures();
+    }
+
+    public static void releaseTexture(int texture) {
+        if (texture == 0) return;
+        --live[Kind.TEXTURE.ordinal()];
+        setTextureBytes(texture, 0);
+        freeTextures.push(texture);
+    }
+
+    public static int genFramebuffer() {
+        ++live[Kind.FRAMEBUFFER.ordinal()];
+        return glGenFramebuffers();
+    }
+
+    public static void releaseFramebuffer(int framebuffer) {
+        if (framebuffer == 0) return;
+        --live[Kind.FRAMEBUFFER.ordinal()];
+        glDeleteFramebuffers(framebuffer);
+    }
+
+    public static int genRenderbuffer() {
+        ++live[Kind.RENDERBUFFER.ordinal()];
+        return glGenRenderbuffers();
+    }
+
+    public static void releaseRenderbuffer(int renderbuffer) {
+        if (renderbuffer == 0) return;
+        --live[Kind.RENDERBUFFER.ordinal()];
+        setRenderbufferBytes(renderbuffer, 0);
+        glDeleteRenderbuffers(renderbuffer);
+    }
+
+    private static void setBytes(HashMap<Integer, Long> sizes, int name, long bytes) {
+        Long old = bytes == 0 ? sizes.remove(name) : sizes.put(name, bytes);
+        liveBytes += bytes - (old == null ? 0 : old);
+    }
+
+    public static void setBufferBytes(int buffer, long bytes) {
+        setBytes(bufferBytes, buffer, bytes);
+    }
+
+    public static void setTextureBytes(int texture, long bytes) {
+        setBytes(textureBytes, texture, bytes);
+    }
+
+    public static void setRenderbufferBytes(int renderbuffer, long bytes) {
+        setBytes(renderbufferBytes, renderbuffer, bytes);
+    }
+
+    // glBufferData on the buffer bound to target, which must be buffer
+
+    public static void bufferData(int target, int buffer, long size, int usage) {
+        glBufferData(target, size, usage);
+        setBufferBytes(buffer, size);
+    }
+
+    public static void bufferData(int target, int buffer, int data[], int usage) {
+        glBufferData(target, data, usage);
+        setBufferBytes(buffer, data.length * 4L);
+    }
+
+    public static void bufferData(int target, int buffer, float data[], int usage) {
+        glBufferData(target, data, usage);
+        setBufferBytes(buffer, data.length * 4L);
+    }
+
+    public static void bufferData(int target, int buffer, FloatBuffer data, int usage) {
+        glBufferData(target, data, usage);
+        setBufferBytes(buffer, data.remaining() * 4L);
+    }
+
+    /**
+     * glBufferStorage on the buffer bound to target, which must be buffer.
+     * The buffer is deleted rather than reused when it is released.
+     */
+    public static void bufferStorage(int target, int buffer, long size, int flags) {
+        glBufferStorage(target, size, flags);
+        immutableBuffers.add(buffer);
+        setBufferBytes(buffer, size);
+    }
+
+    /**
+     * Returns the buffer shared under key, creating it from data and binding
+     * it to target the first time. Each call must be matched by a call to
+     * releaseShared(key).
+     */
+    public static int sharedBuffer(String key, int target, int data[]) {
+        int entry[] = shared.get(key);
+        if (entry == null) {
+            int buffer = genBuffer();
+            glBindBuffer(target, buffer);
+            bufferData(target, buffer, data, GL_STATIC_DRAW);
+            shared.put(key, entry = new int[] { buffer, 0 });
+        } else {
+            glBindBuffer(target, entry[0]);
+        }
+        ++entry[1];
+        return entry[0];
+    }
+
+    public static void releaseShared(String key) {
+        int entry[] = shared.get(key);
+        if (entry == null) return;
+        if (--entry[1] == 0) {
+            shared.remove(key);
+            releaseBuffer(entry[0]);
+        }
+    }
+
+    /**
+     * Binds, and returns, an element buffer of the 6 indices that draw a
+     * quad, shared by everything that draws quads.
+     */
+    public static int quadIndices() {
+        return sharedBuffer("quadIndices", GL_ELEMENT_ARRAY_BUFFER, quadIndices);
+    }
+
+    public static void releaseQuadIndices() {
+        releaseShared("quadIndices");
+    }
+
+    public static int liveCount(Kind kind) {
+        return live[kind.ordinal()];
+    }
+
+    public static int liveCount() {
+        int total = 0;
+        for (int count : live) total += count;
+        return total;
+    }
+
+    /**
+     * Bytes of buffer, texture and renderbuffer storage held by live
+     * objects.
+     */
+    public static long liveBytes() {
+        return liveBytes;
+    }
+
+    public static String summary() {
+        return String.format("%d vertex arrays, %d buffers, %d programs, %d textures, "
+                + "%d framebuffers, %d renderbuffers, %d bytes",
+                liveCount(Kind.VERTEX_ARRAY), liveCount(Kind.BUFFER),
+                liveCount(Kind.PROGRAM), liveCount(Kind.TEXTURE),
+                liveCount(Kind.FRAMEBUFFER), liveCount(Kind.RENDERBUFFER), liveBytes);
+    }
+
+    /**
+     * Deletes the pooled buffers and textures waiting to be reused. Call
+     * after everything has been released, before the context goes away.
+     */
+    public static void deletePooled() {
+        for (int buffer : freeBuffers) glDeleteBuffers(buffer);
+        for (int texture : freeTextures) glDeleteTextures(texture);
+        freeBuffers.clear();
+        freeTextures.clear();
+    }
+
+}
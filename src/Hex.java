@@ -15,28 +15,28 @@
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
-import java.nio.IntBuffer;
-
-import org.lwjgl.*;
-
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL30.*;
 
+/**
+ * The polygon in the middle of the board, with a corner between every two
+ * sides; a hexagon on the default board.
+ */
 public class Hex {
 
-    private static final double SQRT_3_4 = Math.sqrt(3) / 2;
+    private static final float SIZE = (float)Jexx.HEX_SIZE;
 
     private static final String vertexShaderSource =
         "#version 330 core\n"
-      + "layout (location = 0) in vec3 position;\n"
+      + "layout (location = 0) in vec2 position;\n"
       + "uniform float rotationOffset;\n"
       + "void main() {\n"
       + "    gl_Position = vec4("
       + "        position.x * cos(rotationOffset) + position.y * sin(rotationOffset),"
       + "        position.y * cos(rotationOffset) - position.x * sin(rotationOffset),"
-      + "        position.z, 1.0);\n"
+      + "        0.0, 1.0);\n"
       + "}";
     private int rotationOffset;
 
@@ -47,69 +47,37 @@ public class Hex {
       + "    color = vec4(0x58 / 255.0, 0x58 / 255.0, 0x58 / 255.0, 1.0f);\n"
       + "}";
 
-    private static final double vertices[] = {
-          -1 * Jexx.HEX_SIZE,         0 * Jexx.HEX_SIZE, 0,
-        -0.5 * Jexx.HEX_SIZE,  SQRT_3_4 * Jexx.HEX_SIZE, 0,
-         0.5 * Jexx.HEX_SIZE,  SQRT_3_4 * Jexx.HEX_SIZE, 0,
-           1 * Jexx.HEX_SIZE,         0 * Jexx.HEX_SIZE, 0,
-         0.5 * Jexx.HEX_SIZE, -SQRT_3_4 * Jexx.HEX_SIZE, 0,
-        -0.5 * Jexx.HEX_SIZE, -SQRT_3_4 * Jexx.HEX_SIZE, 0
-    };
-
-    private static final int indices[] = {
-        0, 1, 2,
-        0, 2, 3,
-        0, 3, 4,
-        0, 4, 5
-    };
+    private final int sides;
+    private final float vertices[];
 
-    private int shaderProgram, vao;
-
-    public void compileShader() {
-        IntBuffer success = BufferUtils.createIntBuffer(1);
-
-        int vertexShader = glCreateShader(GL_VERTEX_SHADER);
-        glShaderSource(vertexShader, vertexShaderSource);
-        glCompileShader(vertexShader);
-        glGetShaderiv(vertexShader, GL_COMPILE_STATUS, success);
-        if (success.get(0) == 0) {
-            System.err.println(glGetShaderInfoLog(vertexShader));
-        }
+    private int shaderProgram, vao, arrayBuffer;
 
-        int fragmentShader = glCreateShader(GL_FRAGMENT_SHADER);
-        glShaderSource(fragmentShader, fragmentShaderSource);
-        glCompileShader(fragmentShader);
-        glGetShaderiv(fragmentShader, GL_COMPILE_STATUS, success);
-        if (success.get(0) == 0) {
-            System.err.println(glGetShaderInfoLog(fragmentShader));
+    public Hex(int sides) {
+        this.sides = sides;
+        // corner i sits where side i - 1 meets side i, as in BlockRenderer
+        vertices = new float[sides * 2];
+        for (int i = 0; i < sides; ++i) {
+            double angle = i * 2 * Math.PI / sides;
+            vertices[2*i] = (float)Math.cos(angle) * SIZE;
+            vertices[2*i + 1] = (float)Math.sin(angle) * SIZE;
         }
+    }
 
-        shaderProgram = glCreateProgram();
-        glAttachShader(shaderProgram, vertexShader);
-        glAttachShader(shaderProgram, fragmentShader);
-        glLinkProgram(shaderProgram);
-        glGetProgramiv(shaderProgram, GL_COMPILE_STATUS, success);
-        if (success.get(0) == 0) {
-            System.err.println(glGetProgramInfoLog(shaderProgram));
-        }
+    public void compileShader() {
+        shaderProgram = ShaderCache.program(vertexShaderSource, fragmentShaderSource);
 
         rotationOffset = glGetUniformLocation(shaderProgram, "rotationOffset");
-
-        glDeleteShader(vertexShader);
-        glDeleteShader(fragmentShader);
     }
 
     public void genVAO() {
-        vao = glGenVertexArrays();
+        vao = GLResources.genVertexArray();
         glBindVertexArray(vao);
 
-        glBindBuffer(GL_ARRAY_BUFFER, glGenBuffers());
-        glBufferData(GL_ARRAY_BUFFER, vertices, GL_STATIC_DRAW);
+        arrayBuffer = GLResources.genBuffer();
+        glBindBuffer(GL_ARRAY_BUFFER, arrayBuffer);
+        GLResources.bufferData(GL_ARRAY_BUFFER, arrayBuffer, vertices, GL_STATIC_DRAW);
 
-        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, glGenBuffers());
-        glBufferData(GL_ELEMENT_ARRAY_BUFFER, indices, GL_STATIC_DRAW);
-
-        glVertexAttribPointer(0, 3, GL_DOUBLE, false, 0, 0);
+        glVertexAttribPointer(0, 2, GL_FLOAT, false, 0, 0);
         glEnableVertexAttribArray(0);
 
         glBindBuffer(GL_ARRAY_BUFFER, 0);
@@ -120,8 +88,15 @@ public class Hex {
         glUseProgram(shaderProgram);
         glBindVertexArray(vao);
         glUniform1f(rotationOffset, (float)Jexx.rotationOffset);
-        glDrawElements(GL_TRIANGLES, 12, GL_UNSIGNED_INT, 0);
+        glDrawArrays(GL_TRIANGLE_FAN, 0, sides);
         glBindVertexArray(0);
     }
 
+    public void delete() {
+        GLResources.releaseProgram(shaderProgram);
+        GLResources.releaseVertexArray(vao);
+        GLResources.releaseBuffer(arrayBuffer);
+        shaderProgram = vao = arrayBuffer = 0;
+    }
+
 }
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2016  KeyboardFire <andy@keyboardfire.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A fixed-size histogram of non-negative long values (typically
+ * nanoseconds) in the style of HdrHistogram: values are bucketed by their
+ * top 7 significant bits, so any percentile is accurate to within about
+ * 1.5% across the whole range of a long, and recording never allocates.
+ */
+public class Histogram {
+
+    private static final int SUB_BITS = 7;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF = SUB_COUNT / 2;
+
+    private final long counts[] = new long[(64 - SUB_BITS) * HALF + SUB_COUNT];
+    private long total = 0, sum = 0, max = 0;
+
+    private static int index(long value) {
+        int bits = 64 - Long.numberOfLeadingZeros(value);
+        if (bits <= SUB_BITS) return (int)value;
+        int shift = bits - SUB_BITS;
+        return shift * HALF + (int)(value >>> shift);
+    }
+
+    // the smallest value that falls into bucket i
+    private static long lowest(int i) {
+        if (i < SUB_COUNT) return i;
+        int shift = i / HALF - 1;
+        return (long)(i - shift * HALF) << shift;
+    }
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        ++counts[index(value)];
+        ++total;
+        sum += value;
+        if (value > max) max = value;
+    }
+
+    public long count() {
+        return total;
+    }
+
+    public long max() {
+        return max;
+    }
+
+    public double mean() {
+        return total == 0 ? 0 : (double)sum / total;
+    }
+
+    /**
+     * The value below which the given fraction (0 to 1) of recorded values
+     * fall, to within the precision of a bucket.
+     */
+    public long percentile(double fraction) {
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long)Math.ceil(fraction * total));
+        if (rank >= total) return max;
+        long seen = 0;
+        for (int i = 0; i < counts.length; ++i) {
+            seen += counts[i];
+            if (seen >= rank) {
+                // report the middle of the bucket, but never more than max
+                long low = lowest(i), high = lowest(i + 1);
+                return Math.min(max, low + (high - low) / 2);
+            }
+        }
+        return max;
+    }
+
+}
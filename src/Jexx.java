@@ -17,18 +17,8 @@
 
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
-import java.nio.ShortBuffer;
 import java.nio.FloatBuffer;
 
-import java.util.stream.Stream;
-import java.util.stream.IntStream;
-
-import java.util.Optional;
-import java.util.OptionalInt;
-
-import java.util.ArrayList;
-import java.util.ListIterator;
-
 import org.lwjgl.*;
 
 import org.lwjgl.glfw.*;
@@ -41,141 +31,131 @@ import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL30.*;
 
-import org.lwjgl.openal.*;
-import static org.lwjgl.openal.AL10.*;
-import static org.lwjgl.openal.ALC10.*;
-
-import org.lwjgl.stb.STBVorbisInfo;
-import static org.lwjgl.stb.STBVorbis.*;
-
 import static org.lwjgl.system.MemoryUtil.*;
 
 public class Jexx {
 
     public static final double HEX_SIZE = 0.2;
     public static final double BLOCK_SIZE = 0.08;
-    public static final double BLOCK_SPEED = 3;
-    public static final double BLOCK_DELAY = 3;
 
     private final int WIDTH = 600, HEIGHT = 600;
-    private final int NUM_BLOCKS = 8;
 
-    private Hex hex = new Hex();
+    private Hex hex;
+    private BlockRenderer blockRenderer;
     public static double rotationOffset = 0;
-    private int score = 0;
 
-    private Block[][] blocks = new Block[6][NUM_BLOCKS];
-    private ArrayList<Block> fallingBlocks = new ArrayList<>();
+    private Engine engine;
+    private int sides = Engine.NUM_SIDES, depth = Engine.NUM_BLOCKS;
+    private Long seed = null;
 
-    private long window;
+    private String recordPath = null;
+    private Replay.Recorder recorder = null;
 
-    private long alcContext, alcDevice;
-    private int clickSource, slideSource, popSource;
+    // the engine steps in fixed ticks, and rendering only ever sees the
+    // snapshots published after each one
+    private Snapshot.Exchange snapshots = new Snapshot.Exchange();
+    private long ticks = 0;
+    private double accumulator = 0;
+    // how much simulation one frame may catch up on before it gives up
+    private static final double MAX_CATCH_UP = 0.25;
 
-    private int mod(int x, int y) {
-        return x % y + (x < 0 ? y : 0);
-    }
+    // clears settle on the board at once, so falling after one is only an
+    // animation: how far above its cell each board block is still drawn
+    private float lift[];
+    private boolean lifting = false;
 
-    private int floodFill(int i, int j, int color) {
-        if (j < 0 || j >= NUM_BLOCKS) return 0;
-        boolean rightColor = blocks[i][j].color == color;
-        if (rightColor) blocks[i][j].color += 100;
-        return rightColor ? (1 +
-            floodFill(mod(i+1, 6), j, color) +
-            floodFill(mod(i-1, 6), j, color) +
-            floodFill(i, j+1, color) +
-            floodFill(i, j-1, color)) : 0;
-    }
+    // when the last frame drawn had nothing moving in it, and nothing has
+    // asked for it to be drawn again since, frames are skipped and the loop
+    // sleeps until the next spawn or input
+    private boolean drawnStill = false, redraw = true;
 
-    private void postFloodFill(ListIterator<Block> it, int numTouching) {
-        for (int r = 0; r < 6; ++r) {
-            for (int d = 0; d < NUM_BLOCKS; ++d) {
-                if (blocks[r][d].color >= 100) {
-                    if (numTouching >= 3) {
-                        blocks[r][d].color = -1;
-                        ++score;
-                        for (int d2 = d + 1; d2 < NUM_BLOCKS; ++d2) {
-                            if (blocks[r][d2].color != -1 && blocks[r][d2].color < 100) {
-                                Block fall = new Block();
-                                fall.color = blocks[r][d2].color;
-                                fall.genVAO(r, d2, GL_DYNAMIC_DRAW);
-                                it.add(fall);
-                                it.previous();
-                                blocks[r][d2].color = -1;
-                            }
-                        }
-                    } else {
-                        blocks[r][d].color -= 100;
-                    }
-                }
-            }
-        }
-    }
+    private boolean vsync = true;
+    private boolean persistentMapping = true;
 
-    private void spawnBlocks() {
-        Block block = new Block();
-        block.color = (int)(Math.random() * 6);
-        block.genVAO((int)(Math.random() * 6), NUM_BLOCKS, GL_DYNAMIC_DRAW);
-        fallingBlocks.add(block);
-    }
+    private long window;
 
-    private int loadAudioSource(String filePath) {
-        int buffer = alGenBuffers();
-        int source = alGenSources();
+    // when nonzero, run this many frames hidden and fail if GL objects leak
+    private long leakCheckFrames = 0;
+    private int leakBaseline;
 
-        ByteBuffer vorbis;
-        try {
-            vorbis = Util.readByteBuffer(filePath);
-        } catch (java.io.IOException ex) {
-            throw new RuntimeException(ex);
-        }
+    private static final long startTime = System.nanoTime();
 
-        IntBuffer error = BufferUtils.createIntBuffer(1);
-        long decoder = stb_vorbis_open_memory(vorbis, error, null);
-        if (decoder == NULL) System.err.println("stb_vorbis_open_memory: " + error.get(0));
-        STBVorbisInfo info = STBVorbisInfo.malloc();
-        stb_vorbis_get_info(decoder, info);
-        int channels = info.channels();
-        int lengthSamples = stb_vorbis_stream_length_in_samples(decoder);
-        ShortBuffer pcm = BufferUtils.createShortBuffer(lengthSamples);
-        pcm.limit(stb_vorbis_get_samples_short_interleaved(decoder, channels, pcm) * channels);
-        stb_vorbis_close(decoder);
-
-        alBufferData(buffer, info.channels() == 1 ?
-                AL_FORMAT_MONO16 : AL_FORMAT_STEREO16,
-                pcm, info.sample_rate());
-        alSourcei(source, AL_BUFFER, buffer);
-
-        return source;
-    }
+    private FrameStats stats = new FrameStats();
+    private boolean showStats = false;
+    private String statsCsv = null;
+
+    private int spectatePort = -1;
+    private SpectatorServer spectators = null;
+
+    private String capturePath = null;
+    private boolean captureOffscreen = false;
+    private FrameCapture capture = null;
+
+    private Audio audio = new Audio();
+    private int clickSound, slideSound, popSound;
 
     public void run() {
         try {
             init();
             loop();
 
+            if (capture != null) {
+                java.io.IOException error = capture.close();
+                System.out.println(capture.summary());
+                if (error != null) System.err.println("could not write " + capturePath + ": " + error);
+            }
+
+            if (showStats || statsCsv != null) {
+                System.out.println("block instances: " + blockRenderer.streamSummary());
+            }
+            if (spectators != null) {
+                spectators.close();
+                System.out.println(spectators.summary());
+            }
+
+            hex.delete();
+            blockRenderer.delete();
+            GLResources.deletePooled();
+
             glfwFreeCallbacks(window);
             glfwDestroyWindow(window);
         } finally {
             glfwTerminate();
             glfwSetErrorCallback(null).free();
 
-            alcDestroyContext(alcContext);
-            alcCloseDevice(alcDevice);
+            audio.close();
+        }
+
+        if (leakCheckFrames > 0) {
+            System.out.println("after shutdown: " + GLResources.summary());
+            if (GLResources.liveCount() != 0) System.exit(1);
         }
     }
 
     private void init() {
-        // OpenAL stuff
+        engine = new Engine(seed == null ? Engine.randomSeed() : seed, sides, depth);
+        hex = new Hex(sides);
+        blockRenderer = new BlockRenderer(sides, depth);
+        blockRenderer.setPersistentMapping(persistentMapping);
+        lift = new float[sides * depth];
+        if (recordPath != null) recorder = new Replay.Recorder(engine);
+        if (spectatePort >= 0) {
+            try {
+                spectators = new SpectatorServer(new java.net.InetSocketAddress(spectatePort));
+            } catch (java.io.IOException ex) {
+                throw new RuntimeException("could not listen on port " + spectatePort, ex);
+            }
+            spectators.start();
+            System.out.println("spectators can connect to port " + spectators.port());
+        }
 
-        alcDevice = alcOpenDevice((ByteBuffer)null);
-        alcContext = alcCreateContext(alcDevice, (IntBuffer)null);
-        alcMakeContextCurrent(alcContext);
-        AL.createCapabilities(ALC.createCapabilities(alcDevice));
+        // OpenAL stuff
 
-        clickSource = loadAudioSource("click.ogg");
-        slideSource = loadAudioSource("slide.ogg");
-        popSource = loadAudioSource("pop.ogg");
+        // the clips decode in the background while OpenGL is set up
+        audio.open();
+        clickSound = audio.load("click.ogg");
+        slideSound = audio.load("slide.ogg");
+        popSound = audio.load("pop.ogg");
 
         // OpenGL stuff
 
@@ -188,6 +168,7 @@ public class Jexx {
         glfwWindowHint(GLFW_CONTEXT_VERSION_MAJOR, 3);
         glfwWindowHint(GLFW_CONTEXT_VERSION_MINOR, 3);
         glfwWindowHint(GLFW_OPENGL_PROFILE, GLFW_OPENGL_CORE_PROFILE);
+        if (leakCheckFrames > 0) glfwWindowHint(GLFW_VISIBLE, GLFW_FALSE);
 
         window = glfwCreateWindow(WIDTH, HEIGHT, "Jexx", NULL, NULL);
         if (window == NULL) {
@@ -202,116 +183,328 @@ public class Jexx {
         glfwGetFramebufferSize(window, w, h);
         glViewport(0, 0, w.get(0), h.get(0));
 
+        if (capturePath != null) {
+            capture = new FrameCapture(w.get(0), h.get(0), captureOffscreen);
+            try {
+                capture.start(java.nio.file.Paths.get(capturePath));
+            } catch (java.io.IOException ex) {
+                throw new RuntimeException("could not open " + capturePath, ex);
+            }
+        }
+
+        glfwSetWindowRefreshCallback(window, window -> redraw = true);
+
         glfwSetKeyCallback(window, (window, key, scancode, action, mods) -> {
+            redraw = true;
             if (key == GLFW_KEY_ESCAPE && action == GLFW_RELEASE) {
                 glfwSetWindowShouldClose(window, true);
             } else if (key == GLFW_KEY_RIGHT && action == GLFW_PRESS) {
-                for (int i = 0; i < 5; ++i) {
-                    for (int j = 0; j < NUM_BLOCKS; ++j) {
-                        // swap color with block immediately to the left
-                        blocks[i][j].color += blocks[i+1][j].color -
-                            (blocks[i+1][j].color = blocks[i][j].color);
-                    }
-                }
-                rotationOffset -= Math.PI / 3;
-                alSourcePlay(popSource);
+                rotate(-1);
             } else if (key == GLFW_KEY_LEFT && action == GLFW_PRESS) {
-                for (int i = 4; i >= 0; --i) {
-                    for (int j = 0; j < NUM_BLOCKS; ++j) {
-                        // swap color with block immediately to the left
-                        blocks[i][j].color += blocks[i+1][j].color -
-                            (blocks[i+1][j].color = blocks[i][j].color);
-                    }
-                }
-                rotationOffset += Math.PI / 3;
-                alSourcePlay(popSource);
+                rotate(1);
+            } else if (key == GLFW_KEY_F3 && action == GLFW_PRESS) {
+                showStats = !showStats;
             }
         });
 
-        glfwSwapInterval(1); // v-sync
+        glfwSwapInterval(vsync && leakCheckFrames == 0 ? 1 : 0);
 
         hex.compileShader();
         hex.genVAO();
 
-        Block.compileShaders();
-        for (int i = 0; i < 6; ++i) {
-            for (int j = 0; j < NUM_BLOCKS; ++j) {
-                blocks[i][j] = new Block();
-                blocks[i][j].genVAO(i, j, GL_STATIC_DRAW);
-            }
-        }
+        blockRenderer.compileShader();
+        blockRenderer.genVAO();
+
+        audio.finishLoading();
 
-        glfwShowWindow(window);
+        if (leakCheckFrames == 0) glfwShowWindow(window);
     }
 
     private void loop() {
         glClearColor(0x18 / 255f, 0x18 / 255f, 0x18 / 255f, 1);
 
         double lastTime = glfwGetTime();
-        double timeSinceBlock = 0;
 
         Text scoreText = new Text();
         scoreText.compileShader();
         scoreText.loadFont("fonts/OpenSans-Regular.ttf");
+        int shownScore = -1;
+
+        Text statsText = null;
+        double lastStatsUpdate = 0;
+
+        publish();
+
+        for (long frame = 0; !glfwWindowShouldClose(window); ++frame) {
+            // capturing, checking for leaks and the overlay all want every
+            // frame drawn
+            boolean mayIdle = capture == null && leakCheckFrames == 0 && !showStats;
+            double idleFor = 0;
+            if (mayIdle && drawnStill && !redraw) {
+                // the spawn happens on a whole tick, so wake on that tick
+                // rather than spin through the last fraction of one
+                idleFor = Math.ceil(engine.timeToSpawn() / Engine.TICK) * Engine.TICK - accumulator;
+                if (idleFor > 0) glfwWaitEventsTimeout(idleFor);
+            }
 
-        while (!glfwWindowShouldClose(window)) {
-            glfwPollEvents();
+            stats.beginFrame();
 
-            glClear(GL_COLOR_BUFFER_BIT);
+            glfwPollEvents();
+            stats.endPhase(FrameStats.Phase.POLL);
 
             double time = glfwGetTime();
             double deltaTime = time - lastTime;
             lastTime = time;
 
+            if (leakCheckFrames > 0) {
+                // play a game at 60 fps as fast as possible
+                deltaTime = 1.0 / 60;
+                if (frame % 30 == 0) {
+                    engine.rotate(Math.random() < 0.5 ? 1 : -1);
+                    publish();
+                }
+                if (engine.lost()) {
+                    engine = new Engine(Engine.randomSeed(), sides, depth);
+                    java.util.Arrays.fill(lift, 0);
+                }
+                if (frame == 1) leakBaseline = GLResources.liveCount();
+                if (frame == leakCheckFrames) break;
+            }
+
             rotationOffset *= Math.pow(0.003, deltaTime);
             if (Math.abs(rotationOffset) < 0.01) rotationOffset = 0;
 
-            timeSinceBlock += deltaTime;
-            if (timeSinceBlock >= BLOCK_DELAY) {
-                timeSinceBlock -= BLOCK_DELAY;
-                spawnBlocks();
+            // a long stall (dragging the window, a debugger) would otherwise
+            // make every later frame run more ticks than it has time for;
+            // time spent idling on purpose is not a stall
+            accumulator += Math.min(deltaTime, MAX_CATCH_UP + Math.max(idleFor, 0));
+            boolean landed = false, cleared = false;
+            long resolveNanos = 0;
+            while (accumulator >= Engine.TICK) {
+                engine.step(Engine.TICK);
+                ++ticks;
+                addLift();
+                publish();
+                accumulator -= Engine.TICK;
+
+                landed |= engine.landed();
+                cleared |= engine.cleared();
+                resolveNanos += engine.resolveNanos();
+                stats.engineStepped(engine);
             }
 
+            if (cleared) audio.play(slideSound);
+            else if (landed) audio.play(clickSound);
+
+            stats.endPhase(FrameStats.Phase.UPDATE);
+            stats.splitResolve(resolveNanos);
+
+            Snapshot snapshot = snapshots.acquire();
+            double alpha = accumulator / Engine.TICK;
+            if (lifting) settle(snapshot, deltaTime);
+
+            // the screen already shows this, so leave it be
+            boolean still = snapshot.fallingCount == 0 && rotationOffset == 0 && !lifting;
+            if (still && drawnStill && mayIdle && !redraw) continue;
+            drawnStill = still;
+            redraw = false;
+
+            if (capture != null) capture.bind();
+            glClear(GL_COLOR_BUFFER_BIT);
+
             hex.draw();
 
-            boolean playClick = false, playSlide = false;
-            for (ListIterator<Block> it = fallingBlocks.listIterator(); it.hasNext();) {
-                Block block = it.next();
-                block.dist -= BLOCK_SPEED * deltaTime;
-                if (block.dist <= 0 || blocks[block.rot][(int)block.dist].color != -1) {
-                    it.remove();
-                    playClick = true;
-                    OptionalInt d = IntStream.range(0, NUM_BLOCKS)
-                        .filter(x -> { return blocks[block.rot][x].color == -1; })
-                        .findFirst();
-                    if (d.isPresent()) {
-                        blocks[block.rot][d.getAsInt()].color = block.color;
-                        int numTouching = floodFill(block.rot, d.getAsInt(), block.color);
-                        if (numTouching >= 3) {
-                            playSlide = true;
-                        }
-                        postFloodFill(it, numTouching);
-                    } else {
-                        // TODO game is lost
-                    }
-                } else {
-                    block.updateVAO();
-                    block.draw(true);
+            blockRenderer.begin();
+            for (int i = 0; i < snapshot.fallingCount; ++i) {
+                blockRenderer.add(snapshot.rot[i], snapshot.interpolatedDist(i, alpha),
+                        snapshot.color[i], true);
+            }
+            for (int c = 0; c < Board.NUM_COLORS; ++c) {
+                blockRenderer.addCells(snapshot.colors[c], c, lifting ? lift : null);
+            }
+            // board cells are added at their physical side, so fold the
+            // board's rotation offset into the rotation animation
+            blockRenderer.draw(rotationOffset - snapshot.offset * 2 * Math.PI / sides);
+            stats.endPhase(FrameStats.Phase.DRAW);
+
+            if (snapshot.score != shownScore) {
+                scoreText.setText("Score: " + snapshot.score);
+                shownScore = snapshot.score;
+            }
+            scoreText.draw();
+
+            if (showStats) {
+                if (statsText == null) {
+                    statsText = new Text();
+                    statsText.compileShader();
+                    statsText.loadFont("fonts/OpenSans-Regular.ttf");
+                    statsText.setPosition(-0.95f, 0.9f, 0.5f);
                 }
+                // rebuilding the text every frame would show up in the stats
+                if (time - lastStatsUpdate >= 0.5) {
+                    statsText.setText(stats.summary());
+                    lastStatsUpdate = time;
+                }
+                statsText.draw();
             }
-            Stream.of(blocks).flatMap(Stream::of).forEach(Block::draw);
-
-            scoreText.genVAO("Score: " + score);
+            stats.endPhase(FrameStats.Phase.TEXT);
 
-            if (playSlide) alSourcePlay(slideSource);
-            else if (playClick) alSourcePlay(clickSource);
+            if (capture != null) capture.capture();
+            stats.endPhase(FrameStats.Phase.CAPTURE);
 
             glfwSwapBuffers(window);
+            stats.endPhase(FrameStats.Phase.SWAP);
+
+            if (frame == 0 && (showStats || statsCsv != null)) {
+                System.out.printf("first frame after %.1f ms (%s)%n",
+                        (System.nanoTime() - startTime) / 1e6, ShaderCache.summary());
+            }
+
+            stats.endFrame(snapshot.fallingCount);
+        }
+
+        if (statsText != null) statsText.delete();
+
+        if (statsCsv != null) {
+            try {
+                stats.writeCsv(statsCsv);
+            } catch (java.io.IOException ex) {
+                System.err.println("could not write " + statsCsv + ": " + ex);
+            }
+        }
+
+        if (recorder != null) {
+            try {
+                recorder.finish(java.nio.file.Paths.get(recordPath), ticks, engine);
+            } catch (java.io.IOException ex) {
+                System.err.println("could not write " + recordPath + ": " + ex);
+            }
+        }
+
+        if (leakCheckFrames > 0) {
+            System.out.println("after " + leakCheckFrames + " frames: " + GLResources.summary());
+            if (GLResources.liveCount() > leakBaseline) {
+                System.err.println("GL objects leaked: " + leakBaseline
+                        + " live after the first frame, " + GLResources.liveCount() + " now");
+                System.exit(1);
+            }
+        }
+
+        scoreText.delete();
+    }
+
+    private void rotate(int dir) {
+        engine.rotate(dir);
+        if (recorder != null) recorder.rotate(ticks, dir);
+        publish();
+        rotationOffset += dir * 2 * Math.PI / sides;
+        audio.play(popSound);
+    }
+
+    /**
+     * Starts the blocks the last tick moved down falling from where they
+     * were drawn, which is higher still if they were already falling.
+     * Board lists them so that moving one never disturbs another.
+     */
+    private void addLift() {
+        for (int i = 0; i < engine.drops(); ++i) {
+            int to = engine.dropCell(i), base = to - engine.board.depthOf(to);
+            int from = base + engine.dropFrom(i);
+            lift[to] = from - to + lift[from];
+            lift[from] = 0;
+            lifting = true;
+        }
+    }
+
+    /**
+     * Moves every lifted block down at the speed blocks fall, forgetting
+     * any whose cell has been cleared since.
+     */
+    private void settle(Snapshot snapshot, double deltaTime) {
+        float fall = (float)(Engine.BLOCK_SPEED * deltaTime);
+        lifting = false;
+        for (int bit = 0; bit < lift.length; ++bit) {
+            if (lift[bit] == 0) continue;
+            boolean occupied = false;
+            for (int c = 0; c < Board.NUM_COLORS && !occupied; ++c) {
+                occupied = (snapshot.colors[c][bit >>> 6] & 1L << bit) != 0;
+            }
+            lift[bit] = occupied ? Math.max(lift[bit] - fall, 0) : 0;
+            lifting |= lift[bit] > 0;
         }
     }
 
+    /**
+     * Hands the engine's current state to the renderer. Called after every
+     * tick, and after input that changes the board between ticks.
+     */
+    private void publish() {
+        snapshots.back().capture(engine, ticks);
+        if (spectators != null) spectators.publish(snapshots.back());
+        snapshots.publish();
+    }
+
+    /**
+     *     java Jexx [--leak-check frames] [--stats] [--stats-csv file] [--no-vsync]
+     *               [--seed n] [--record file] [--capture path] [--offscreen]
+     *               [--sides n] [--depth n] [--orphan] [--spectate port]
+     *
+     * --stats shows frame timing on screen (F3 toggles it at any time), and
+     * --stats-csv writes the timing histograms to a file on exit.
+     * --no-vsync renders as fast as possible; the game runs at the same
+     * speed either way.
+     * --seed plays the game with a chosen seed, and --record writes a replay
+     * of it on exit for java Replay to play back.
+     * --capture records every frame: as frameNNNNNN.ppm images if path is a
+     * directory, or else as raw bottom-up RGBA video, which e.g.
+     *     ffmpeg -f rawvideo -pix_fmt rgba -s 600x600 -r 60 -i path -vf vflip out.mp4
+     * turns into something watchable. --offscreen captures from a
+     * framebuffer object instead of the window.
+     * --sides and --depth change the shape of the board from the default
+     * hexagon, 8 blocks deep.
+     * --orphan streams blocks to the GPU by orphaning a buffer every frame,
+     * even where a persistently mapped one is supported.
+     * --spectate streams the game to spectators connecting to port, as
+     * described in SpectatorServer; port 0 picks any free one.
+     */
     public static void main(String[] args) {
-        new Jexx().run();
+        Jexx jexx = new Jexx();
+        for (int i = 0; i < args.length; ++i) {
+            if (args[i].equals("--leak-check") && i + 1 < args.length) {
+                jexx.leakCheckFrames = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--stats")) {
+                jexx.showStats = true;
+            } else if (args[i].equals("--stats-csv") && i + 1 < args.length) {
+                jexx.statsCsv = args[++i];
+            } else if (args[i].equals("--no-vsync")) {
+                jexx.vsync = false;
+            } else if (args[i].equals("--seed") && i + 1 < args.length) {
+                jexx.seed = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--record") && i + 1 < args.length) {
+                jexx.recordPath = args[++i];
+            } else if (args[i].equals("--capture") && i + 1 < args.length) {
+                jexx.capturePath = args[++i];
+            } else if (args[i].equals("--offscreen")) {
+                jexx.captureOffscreen = true;
+            } else if (args[i].equals("--sides") && i + 1 < args.length) {
+                jexx.sides = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--depth") && i + 1 < args.length) {
+                jexx.depth = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--spectate") && i + 1 < args.length) {
+                jexx.spectatePort = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--orphan")) {
+                jexx.persistentMapping = false;
+            } else {
+                System.err.println("unknown argument: " + args[i]);
+                System.exit(2);
+            }
+        }
+        if (jexx.leakCheckFrames > 0 && jexx.recordPath != null) {
+            // the leak check starts a new game whenever one is lost
+            System.err.println("--record can't be used with --leak-check");
+            System.exit(2);
+        }
+        jexx.run();
     }
 
 }
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2016  KeyboardFire <andy@keyboardfire.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * A recorded game: the engine's seed and every rotation, stamped with the
+ * number of ticks the engine had run when it happened. Since the engine
+ * always steps by Engine.TICK, that is enough to play the game again
+ * exactly, and the recorded final score and board hash check that it did.
+ *
+ *     int     magic
+ *     byte    version
+ *     long    seed
+ *     varint  sides
+ *     varint  depth
+ *     varint  number of rotations
+ *     for each rotation:
+ *         varint  (ticks since the previous rotation << 1) | (1 if left)
+ *     varint  ticks from the last rotation to the end of the game
+ *     varint  final score
+ *     long    final board hash
+ *
+ * Everything is little-endian, and varints are unsigned LEB128, so a
+ * rotation usually takes two bytes.
+ *
+ * Version 3 has the same layout as version 2 (version 1 had no sides or
+ * depth), but clears now cascade within the tick they happen in, so no
+ * game recorded before then plays the same way and older replays are
+ * refused rather than reported as mismatches.
+ */
+public class Replay {
+
+    private static final int MAGIC = 0x4a585250; // "JXRP"
+    private static final int VERSION = 3;
+
+    public final long seed;
+    public final int sides, depth;
+    private final long ticks[];
+    private final boolean left[];
+    public final long endTick;
+    public final int score;
+    public final long boardHash;
+
+    private Replay(long seed, int sides, int depth, long ticks[], boolean left[],
+            long endTick, int score, long boardHash) {
+        this.seed = seed;
+        this.sides = sides;
+        this.depth = depth;
+        this.ticks = ticks;
+        this.left = left;
+        this.endTick = endTick;
+        this.score = score;
+        this.boardHash = boardHash;
+    }
+
+    public int rotations() {
+        return ticks.length;
+    }
+
+    /**
+     * Plays the game again headlessly, as fast as possible, and returns
+     * the engine as it was when the recording ended.
+     */
+    public Engine play() {
+        Engine engine = new Engine(seed, sides, depth);
+        long tick = 0;
+        for (int i = 0; i < ticks.length; ++i) {
+            for (; tick < ticks[i]; ++tick) engine.step(Engine.TICK);
+            engine.rotate(left[i] ? 1 : -1);
+        }
+        for (; tick < endTick; ++tick) engine.step(Engine.TICK);
+        return engine;
+    }
+
+    /**
+     * Whether an engine ended up where the recorded game did.
+     */
+    public boolean matches(Engine engine) {
+        return engine.score == score && engine.board.hash() == boardHash;
+    }
+
+    public static Replay read(Path path) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (in.getInt() != MAGIC) throw new IOException(path + " is not a replay");
+            int version = in.get();
+            if (version < VERSION) {
+                throw new IOException(path + " is replay version " + version
+                        + ", recorded under older rules");
+            }
+            if (version > VERSION) {
+                throw new IOException(path + " is replay version " + version);
+            }
+            long seed = in.getLong();
+            int sides = (int)readVarint(in);
+            int depth = (int)readVarint(in);
+            int count = (int)readVarint(in);
+            if (count < 0 || count > in.remaining()) {
+                throw new IOException("corrupt replay " + path);
+            }
+            long ticks[] = new long[count];
+            boolean left[] = new boolean[count];
+            long tick = 0;
+            for (int i = 0; i < count; ++i) {
+                long v = readVarint(in);
+                ticks[i] = tick += v >>> 1;
+                left[i] = (v & 1) != 0;
+            }
+            long endTick = tick + readVarint(in);
+            int score = (int)readVarint(in);
+            return new Replay(seed, sides, depth, ticks, left, endTick, score, in.getLong());
+        } catch (BufferUnderflowException e) {
+            throw new IOException("truncated replay " + path);
+        }
+    }
+
+    // unsigned LEB128, which SpectatorServer's frames use too
+
+    static long readVarint(ByteBuffer in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            v |= (long)(b & 0x7f) << shift;
+            if (b >= 0) return v;
+        }
+        throw new IOException("varint too long");
+    }
+
+    static void writeVarint(ByteArrayOutputStream out, long v) {
+        for (; (v & ~0x7fL) != 0; v >>>= 7) out.write((int)(v & 0x7f) | 0x80);
+        out.write((int)v);
+    }
+
+    /**
+     * Records a game as it is played. Rotations are kept encoded in memory,
+     * and only written out by finish().
+     */
+    public static class Recorder {
+
+        private final long seed;
+        private final int sides, depth;
+        private final ByteArrayOutputStream rotations = new ByteArrayOutputStream();
+        private int count = 0;
+        private long lastTick = 0;
+
+        /**
+         * Starts recording the game a freshly made engine is about to play.
+         */
+        public Recorder(Engine engine) {
+            seed = engine.seed;
+            sides = engine.sides;
+            depth = engine.depth;
+        }
+
+        /**
+         * Records a rotation made after the engine had run tick steps.
+         */
+        public void rotate(long tick, int dir) {
+            if (tick < lastTick) throw new IllegalArgumentException("rotations out of order");
+            writeVarint(rotations, (tick - lastTick) << 1 | (dir > 0 ? 1 : 0));
+            lastTick = tick;
+            ++count;
+        }
+
+        /**
+         * Writes the replay, ending after the engine had run tick steps.
+         */
+        public void finish(Path path, long tick, Engine engine) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(rotations.size() + 32);
+            ByteBuffer header = ByteBuffer.allocate(13).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).put((byte)VERSION).putLong(seed);
+            out.write(header.array());
+            writeVarint(out, sides);
+            writeVarint(out, depth);
+            writeVarint(out, count);
+            rotations.writeTo(out);
+            writeVarint(out, tick - lastTick);
+            writeVarint(out, engine.score);
+            ByteBuffer hash = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            out.write(hash.putLong(engine.board.hash()).array());
+            Files.write(path, out.toByteArray());
+        }
+
+    }
+
+    /**
+     * Plays back every replay given and checks it ends with the recorded
+     * score and board, exiting with status 1 if any doesn't.
+     *
+     *     java Replay file...
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("usage: java Replay file...");
+            System.exit(2);
+        }
+
+        int failed = 0;
+        long totalTicks = 0;
+        long start = System.nanoTime();
+        for (String arg : args) {
+            Replay replay = read(Paths.get(arg));
+            Engine engine = replay.play();
+            totalTicks += replay.endTick;
+            if (!replay.matches(engine)) {
+                System.out.printf("%s: MISMATCH, score %d (recorded %d), board %016x (recorded %016x)%n",
+                        arg, engine.score, replay.score, engine.board.hash(), replay.boardHash);
+                ++failed;
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%d replays, %d failed: %d ticks in %.3f s, %.0fx real time%n",
+                args.length, failed, totalTicks, seconds, totalTicks * Engine.TICK / seconds);
+        if (failed > 0) System.exit(1);
+    }
+
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2016  KeyboardFire <andy@keyboardfire.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.lwjgl.*;
+
+import org.lwjgl.opengl.*;
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL41.*;
+
+/**
+ * Compiles and links shader programs, keeping the linked binaries in the
+ * cache directory (see Util.cacheDir()) so later launches can skip
+ * compilation entirely.
+ *
+ * Binaries are keyed by a hash of the shader sources and the GL vendor,
+ * renderer and version strings, since they are only valid for the driver
+ * that produced them. If the driver doesn't support program binaries, or
+ * rejects a cached one, the program is compiled from source as usual.
+ */
+public class ShaderCache {
+
+    private static final int MAGIC = 0x4a585042; // "JXPB"
+
+    private static Boolean supported = null;
+    private static int hits = 0, misses = 0;
+
+    private static boolean supported() {
+        if (supported == null) {
+            GLCapabilities caps = GL.getCapabilities();
+            supported = (caps.OpenGL41 || caps.GL_ARB_get_program_binary)
+                && glGetInteger(GL_NUM_PROGRAM_BINARY_FORMATS) > 0;
+        }
+        return supported;
+    }
+
+    private static String key(String vertexSource, String fragmentSource) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            for (String part : new String[] {
+                    vertexSource, fragmentSource,
+                    glGetString(GL_VENDOR), glGetString(GL_RENDERER), glGetString(GL_VERSION) }) {
+                sha.update(String.valueOf(part).getBytes(StandardCharsets.UTF_8));
+                sha.update((byte)0);
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : sha.digest()) sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Returns a linked program built from the given sources, created
+     * through GLResources.
+     */
+    public static int program(String vertexSource, String fragmentSource) {
+        if (!supported()) return compile(vertexSource, fragmentSource, false);
+
+        Path file = Util.cacheDir().resolve("shaders").resolve(key(vertexSource, fragmentSource));
+        int program = load(file);
+        if (program != 0) {
+            ++hits;
+            return program;
+        }
+
+        ++misses;
+        program = compile(vertexSource, fragmentSource, true);
+        store(program, file);
+        return program;
+    }
+
+    private static int load(Path file) {
+        if (!Files.isRegularFile(file)) return 0;
+
+        ByteBuffer data;
+        try {
+            data = Util.readByteBuffer(file.toString());
+        } catch (IOException ex) {
+            return 0;
+        }
+        if (data.remaining() < 12 || data.getInt() != MAGIC) return 0;
+        int format = data.getInt(), length = data.getInt();
+        if (length != data.remaining()) return 0;
+
+        int program = GLResources.createProgram();
+        glProgramBinary(program, format, data);
+        if (glGetProgrami(program, GL_LINK_STATUS) == 0) {
+            // e.g. the driver was updated without changing its version string
+            GLResources.releaseProgram(program);
+            return 0;
+        }
+        return program;
+    }
+
+    private static void store(int program, Path file) {
+        int length = glGetProgrami(program, GL_PROGRAM_BINARY_LENGTH);
+        if (length <= 0) return;
+
+        ByteBuffer binary = BufferUtils.createByteBuffer(length);
+        IntBuffer written = BufferUtils.createIntBuffer(1);
+        IntBuffer format = BufferUtils.createIntBuffer(1);
+        glGetProgramBinary(program, written, format, binary);
+        binary.limit(written.get(0));
+
+        ByteBuffer data = ByteBuffer.allocate(12 + binary.remaining())
+            .order(binary.order());
+        data.putInt(MAGIC).putInt(format.get(0)).putInt(binary.remaining()).put(binary);
+
+        try {
+            Files.createDirectories(file.getParent());
+            // write to a temporary file first so a concurrent launch never
+            // sees a half-written binary
+            Path tmp = Files.createTempFile(file.getParent(), "program", ".tmp");
+            Files.write(tmp, data.array());
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            System.err.println("could not cache shader program: " + ex);
+        }
+    }
+
+    private static int compileShader(int type, String source) {
+        int shader = glCreateShader(type);
+        glShaderSource(shader, source);
+        glCompileShader(shader);
+        if (glGetShaderi(shader, GL_COMPILE_STATUS) == 0) {
+            System.err.println(glGetShaderInfoLog(shader));
+        }
+        return shader;
+    }
+
+    private static int compile(String vertexSource, String fragmentSource, boolean retrievable) {
+        int vertexShader = compileShader(GL_VERTEX_SHADER, vertexSource);
+        int fragmentShader = compileShader(GL_FRAGMENT_SHADER, fragmentSource);
+
+        int program = GLResources.createProgram();
+        if (retrievable) glProgramParameteri(program, GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL_TRUE);
+        glAttachShader(program, vertexShader);
+        glAttachShader(program, fragmentShader);
+        glLinkProgram(program);
+        if (glGetProgrami(program, GL_LINK_STATUS) == 0) {
+            System.err.println(glGetProgramInfoLog(program));
+        }
+
+        glDeleteShader(vertexShader);
+        glDeleteShader(fragmentShader);
+        return program;
+    }
+
+    /**
+     * How many programs were loaded from the cache, and how many had to be
+     * compiled, since startup.
+     */
+    public static String summary() {
+        return hits + " shader programs from cache, " + misses + " compiled";
+    }
+
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2016  KeyboardFire <andy@keyboardfire.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Everything the renderer needs from one simulation tick, copied out of the
+ * Engine so that rendering never looks at the live game state.
+ *
+ * Snapshots are handed from the simulation to the renderer through an
+ * Exchange, which recycles three of them and never blocks either side.
+ */
+public class Snapshot {
+
+    public long tick;
+    // set by Exchange.publish(), so input published between ticks counts too
+    private volatile long sequence = -1;
+
+    // one bitset per color, as in Board
+    public long colors[][] = new long[Board.NUM_COLORS][0];
+    public int sides, depth, offset, score;
+
+    public int fallingCount;
+    public int rot[] = new int[0], color[] = new int[0];
+    public double dist[] = new double[0];
+
+    public void capture(Engine engine, long tick) {
+        Board board = engine.board;
+        for (int c = 0; c < Board.NUM_COLORS; ++c) {
+            if (colors[c].length != board.words()) colors[c] = new long[board.words()];
+            for (int w = 0; w < board.words(); ++w) colors[c][w] = board.colorBits(c, w);
+        }
+        sides = board.sides;
+        depth = board.depth;
+        offset = board.offset();
+        score = engine.score;
+
+        FallingBlocks falling = engine.falling;
+        if (rot.length < falling.count) {
+            // only grows to the pool's capacity, then never again
+            rot = new int[falling.rot.length];
+            color = new int[falling.rot.length];
+            dist = new double[falling.rot.length];
+        }
+        fallingCount = falling.count;
+        System.arraycopy(falling.rot, 0, rot, 0, fallingCount);
+        System.arraycopy(falling.color, 0, color, 0, fallingCount);
+        System.arraycopy(falling.dist, 0, dist, 0, fallingCount);
+
+        this.tick = tick;
+    }
+
+    /**
+     * Makes this snapshot an exact copy of another, except for the
+     * sequence number Exchange gives it.
+     */
+    public void copyFrom(Snapshot other) {
+        for (int c = 0; c < Board.NUM_COLORS; ++c) {
+            if (colors[c].length != other.colors[c].length) {
+                colors[c] = new long[other.colors[c].length];
+            }
+            System.arraycopy(other.colors[c], 0, colors[c], 0, colors[c].length);
+        }
+        sides = other.sides;
+        depth = other.depth;
+        offset = other.offset;
+        score = other.score;
+
+        growFalling(other.fallingCount);
+        fallingCount = other.fallingCount;
+        System.arraycopy(other.rot, 0, rot, 0, fallingCount);
+        System.arraycopy(other.color, 0, color, 0, fallingCount);
+        System.arraycopy(other.dist, 0, dist, 0, fallingCount);
+
+        tick = other.tick;
+    }
+
+    /**
+     * Makes room for count falling blocks, keeping the ones there.
+     */
+    public void growFalling(int count) {
+        if (rot.length >= count) return;
+        rot = java.util.Arrays.copyOf(rot, count);
+        color = java.util.Arrays.copyOf(color, count);
+        dist = java.util.Arrays.copyOf(dist, count);
+    }
+
+    /**
+     * The color of a physical cell, numbered as in Board, or -1 if it is
+     * empty.
+     */
+    public int colorAt(int bit) {
+        for (int c = 0; c < Board.NUM_COLORS; ++c) {
+            if ((colors[c][bit >>> 6] & 1L << bit) != 0) return c;
+        }
+        return -1;
+    }
+
+    /**
+     * Where falling block i was a fraction alpha (0 to 1) of the way from
+     * the previous tick to this one. Blocks always fall at BLOCK_SPEED, so
+     * this interpolates exactly without needing the previous snapshot.
+     */
+    public double interpolatedDist(int i, double alpha) {
+        return dist[i] + Engine.BLOCK_SPEED * Engine.TICK * (1 - alpha);
+    }
+
+    /**
+     * A lock-free triple buffer: the writer fills back() and publish()es
+     * it, and the reader takes the newest published snapshot with
+     * acquire(). Each side owns one snapshot at a time and the third sits
+     * in the middle, so neither ever waits for or overwrites the other.
+     */
+    public static class Exchange {
+
+        private final AtomicReference<Snapshot> latest = new AtomicReference<>(new Snapshot());
+        private Snapshot back = new Snapshot(), front = new Snapshot();
+        private long published = 0;
+
+        /**
+         * The snapshot for the writer to fill in.
+         */
+        public Snapshot back() {
+            return back;
+        }
+
+        public void publish() {
+            back.sequence = published++;
+            back = latest.getAndSet(back);
+        }
+
+        /**
+         * The newest published snapshot. It stays valid, and unchanged,
+         * until the next call to acquire().
+         */
+        public Snapshot acquire() {
+            if (latest.get().sequence > front.sequence) {
+                front = latest.getAndSet(front);
+            }
+            return front;
+        }
+
+    }
+
+}
@@ -0,0 +1,690 @@
+/*
+ * Copyright (C) 2016  KeyboardFire <andy@keyboardfire.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import java.lang.management.ManagementFactory;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Streams a game to any number of spectators over TCP, so lobby screens
+ * can show it without a GL client of their own on the player's machine.
+ *
+ * The game thread hands over every snapshot it publishes with publish(),
+ * through a Snapshot.Exchange, and goes straight back to the game. A
+ * single selector thread does everything else. It takes the newest
+ * snapshot, encodes what changed since the last one it sent as a small
+ * delta frame, and adds it to every subscriber's bounded queue of frames
+ * to send. A subscriber whose queue fills up has it replaced with a
+ * keyframe of the current state, so a slow screen skips ahead instead of
+ * holding everything else up. If the selector thread itself falls behind,
+ * it skips ahead too, and one delta covers several ticks. Nothing on the
+ * game thread ever waits for the network.
+ *
+ * Every frame is a varint length followed by that many bytes:
+ *
+ *     byte    KEYFRAME
+ *     varint  tick, sides, depth, offset, score
+ *     for each physical side:
+ *         varint  height
+ *         byte    color of each block, bottom first
+ *     falling blocks
+ *
+ *     byte    DELTA
+ *     varint  ticks since the previous frame, offset, score
+ *     varint  number of sides that changed
+ *     for each:
+ *         varint  physical side, lowest depth that changed, blocks from there
+ *         byte    color of each of those blocks, bottom first
+ *     falling blocks
+ *
+ * where falling blocks are a varint count followed by, for each, varints
+ * side, color and distance in 64ths of a block. Varints are unsigned
+ * LEB128, as in Replay. A subscriber's first frame is always a keyframe,
+ * and read() turns frames back into a Snapshot that renders like the
+ * game's own.
+ */
+public class SpectatorServer {
+
+    public static final byte KEYFRAME = 0, DELTA = 1;
+    private static final int DIST_SCALE = 64;
+
+    // frames waiting for one subscriber before it is resynced instead
+    private static final int QUEUE = 64;
+    // and the most the kernel may hold for one, so that a stalled
+    // subscriber fills its queue in seconds rather than minutes
+    private static final int SEND_BUFFER = 8192;
+
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private Thread thread;
+    private volatile boolean open = true;
+
+    private final Snapshot.Exchange snapshots = new Snapshot.Exchange();
+
+    // the selector thread's side: the last snapshot taken, the game as of
+    // the last frame sent, and a keyframe of that, made when first needed
+    private Snapshot taken = null;
+    private final Snapshot sent = new Snapshot();
+    private ByteBuffer keyframe = null;
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+    private final ByteArrayOutputStream framed = new ByteArrayOutputStream(256);
+    private int lowest[] = new int[0];
+    private final ArrayList<Subscriber> subscribers = new ArrayList<>();
+    private final ByteBuffer discard = ByteBuffer.allocate(256);
+
+    private volatile long frames = 0, bytesSent = 0, resyncs = 0, accepted = 0;
+
+    private static class Subscriber {
+
+        final SocketChannel channel;
+        final SelectionKey key;
+        final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+
+        Subscriber(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+    }
+
+    /**
+     * Listens on address, which may have port 0 for any free port.
+     */
+    public SpectatorServer(InetSocketAddress address) throws IOException {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(address, 1024);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    public int port() {
+        return server.socket().getLocalPort();
+    }
+
+    public void start() {
+        thread = new Thread(this::run, "spectator server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Hands the server a copy of the game to send. Call on the game
+     * thread, after every tick and after input that changes the board
+     * between ticks.
+     */
+    public void publish(Snapshot snapshot) {
+        snapshots.back().copyFrom(snapshot);
+        snapshots.publish();
+        selector.wakeup();
+    }
+
+    /**
+     * Frames an encoded body, prefixing its length.
+     */
+    private ByteBuffer frame() {
+        framed.reset();
+        Replay.writeVarint(framed, body.size());
+        try {
+            body.writeTo(framed);
+        } catch (IOException ex) {
+            // one stream in memory to another can't fail
+            throw new IllegalStateException(ex);
+        }
+        return ByteBuffer.wrap(framed.toByteArray());
+    }
+
+    private void run() {
+        while (open) {
+            try {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        Subscriber subscriber = (Subscriber)key.attachment();
+                        if (key.isReadable()) read(subscriber);
+                        if (key.isValid() && key.isWritable()) flush(subscriber);
+                    }
+                }
+
+                // acquire() hands back the snapshot it last did until there
+                // is a newer one
+                Snapshot latest = snapshots.acquire();
+                if (latest != taken && latest.sides > 0) broadcast(latest);
+                taken = latest;
+                subscribers.removeIf(subscriber -> !subscriber.channel.isOpen());
+            } catch (IOException ex) {
+                if (open) System.err.println("spectator server: " + ex);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, SEND_BUFFER);
+            Subscriber subscriber = new Subscriber(channel, channel.register(selector, SelectionKey.OP_READ));
+            subscriber.key.attach(subscriber);
+            subscribers.add(subscriber);
+            ++accepted;
+            // until the game sends something, the first broadcast will do
+            if (sent.sides > 0) {
+                subscriber.queue.add(keyframe().duplicate());
+                flush(subscriber);
+            }
+        }
+    }
+
+    /**
+     * Spectators have nothing to say, so this only notices them leaving.
+     */
+    private void read(Subscriber subscriber) {
+        try {
+            int n;
+            do {
+                discard.clear();
+                n = subscriber.channel.read(discard);
+            } while (n > 0);
+            if (n < 0) close(subscriber);
+        } catch (IOException ex) {
+            close(subscriber);
+        }
+    }
+
+    /**
+     * Sends everything that changed between the last snapshot sent and
+     * latest to every subscriber.
+     */
+    private void broadcast(Snapshot latest) {
+        body.reset();
+        if (sent.sides != latest.sides || sent.depth != latest.depth) {
+            // the first snapshot, or a new board: nothing to build on
+            writeKeyframe(latest, body);
+            // writeDelta expects every side it has not seen change at the depth
+            if (lowest.length != latest.sides) lowest = new int[latest.sides];
+            Arrays.fill(lowest, latest.depth);
+        } else {
+            writeDelta(sent, latest, body, lowest);
+        }
+        ByteBuffer frame = frame();
+        sent.copyFrom(latest);
+        keyframe = null;
+        ++frames;
+
+        for (Subscriber subscriber : subscribers) {
+            if (!subscriber.channel.isOpen()) continue;
+            if (subscriber.queue.size() < QUEUE) {
+                subscriber.queue.add(frame.duplicate());
+            } else {
+                resync(subscriber);
+            }
+            flush(subscriber);
+        }
+    }
+
+    /**
+     * Replaces everything a subscriber has yet to be sent with a keyframe,
+     * except a frame already partly sent, which has to be finished.
+     */
+    private void resync(Subscriber subscriber) {
+        ByteBuffer head = subscriber.queue.peekFirst();
+        subscriber.queue.clear();
+        if (head != null && head.position() > 0) subscriber.queue.add(head);
+        subscriber.queue.add(keyframe().duplicate());
+        ++resyncs;
+    }
+
+    private ByteBuffer keyframe() {
+        if (keyframe == null) {
+            body.reset();
+            writeKeyframe(sent, body);
+            keyframe = frame();
+        }
+        return keyframe;
+    }
+
+    /**
+     * Sends as much of a subscriber's queue as its socket takes, and asks
+     * to hear when it can take more if that wasn't all of it.
+     */
+    private void flush(Subscriber subscriber) {
+        try {
+            long n = 0;
+            for (ByteBuffer head; (head = subscriber.queue.peekFirst()) != null;) {
+                n += subscriber.channel.write(head);
+                if (head.hasRemaining()) break;
+                subscriber.queue.pollFirst();
+            }
+            bytesSent += n;
+            int ops = subscriber.queue.isEmpty()
+                ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+            if (subscriber.key.interestOps() != ops) subscriber.key.interestOps(ops);
+        } catch (IOException ex) {
+            close(subscriber);
+        }
+    }
+
+    private void close(Subscriber subscriber) {
+        subscriber.key.cancel();
+        subscriber.queue.clear();
+        try {
+            subscriber.channel.close();
+        } catch (IOException ex) {
+        }
+    }
+
+    /**
+     * CPU time the selector thread has used, in nanoseconds.
+     */
+    public long cpuNanos() {
+        return ManagementFactory.getThreadMXBean().getThreadCpuTime(thread.getId());
+    }
+
+    public String summary() {
+        return String.format("%d spectators seen, %d frames, %d bytes sent, %d resyncs",
+                accepted, frames, bytesSent, resyncs);
+    }
+
+    /**
+     * Stops the selector thread and disconnects everyone.
+     */
+    public void close() {
+        open = false;
+        selector.wakeup();
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (Subscriber subscriber : subscribers) close(subscriber);
+        try {
+            server.close();
+            selector.close();
+        } catch (IOException ex) {
+        }
+    }
+
+    /**
+     * Plays a headless game into a server on localhost, watched by a
+     * growing number of spectators all driven from one selector, and
+     * reports what each number costs: the selector thread's CPU time as a
+     * share of the wall clock, the game thread's time publishing each
+     * tick, and the bytes sent. One more spectator, with a tiny receive
+     * buffer, reads nothing until the game is over, so it falls behind and
+     * has to be resynced. Halfway through, the game moves to a deeper board
+     * with the same number of sides, so deltas after a new shape are
+     * checked too. Every spectator's view must end up exactly the game's,
+     * or it exits with status 1.
+     *
+     *     java SpectatorServer [ticks] [ticks per second, 0 for flat out]
+     *                          [spectators...]
+     */
+    public static void main(String[] args) throws Exception {
+        long ticks = args.length > 0 ? Long.parseLong(args[0]) : 6000;
+        double rate = args.length > 1 ? Double.parseDouble(args[1]) : 10 / Engine.TICK;
+        int counts[] = args.length > 2
+            ? Arrays.stream(args, 2, args.length).mapToInt(Integer::parseInt).toArray()
+            : new int[] { 1, 10, 100, 400 };
+
+        System.out.println("spectators,ticks_per_s,server_cpu_pct,publish_us_per_tick,"
+                + "bytes_per_tick_each,resyncs,mismatches");
+        boolean failed = false;
+        for (int count : counts) failed |= benchmark(count, ticks, rate);
+        if (failed) System.exit(1);
+    }
+
+    private static boolean benchmark(int count, long ticks, double rate) throws Exception {
+        SpectatorServer server = new SpectatorServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        server.start();
+
+        Selector clients = Selector.open();
+        Spectator spectators[] = new Spectator[count + 1];
+        SelectionKey stalled = null;
+        for (int i = 0; i <= count; ++i) {
+            SocketChannel channel = SocketChannel.open();
+            if (i == count) channel.setOption(StandardSocketOptions.SO_RCVBUF, 1024);
+            channel.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.port()));
+            channel.configureBlocking(false);
+            stalled = channel.register(clients, i < count ? SelectionKey.OP_READ : 0,
+                    spectators[i] = new Spectator());
+        }
+        SelectionKey stalledKey = stalled;
+        while (server.accepted <= count) Thread.sleep(1);
+
+        long lastTick[] = { -1 };
+        Thread watcher = new Thread(() -> {
+            long deadline = Long.MAX_VALUE;
+            try {
+                for (;;) {
+                    clients.select(10);
+                    for (SelectionKey key : clients.selectedKeys()) {
+                        ((Spectator)key.attachment()).read((SocketChannel)key.channel());
+                    }
+                    clients.selectedKeys().clear();
+
+                    long last;
+                    synchronized (lastTick) {
+                        last = lastTick[0];
+                    }
+                    if (last < 0) continue;
+                    if (deadline == Long.MAX_VALUE) {
+                        deadline = System.nanoTime() + 10_000_000_000L;
+                        stalledKey.interestOps(SelectionKey.OP_READ);
+                    }
+                    boolean done = true;
+                    for (Spectator spectator : spectators) done &= spectator.snapshot.tick == last;
+                    if (done || System.nanoTime() > deadline) break;
+                }
+            } catch (IOException ex) {
+                System.err.println("spectator: " + ex);
+            }
+        }, "spectators");
+        watcher.start();
+
+        Engine engine = new Engine(1);
+        int depth = Engine.NUM_BLOCKS;
+        Rng keys = new Rng(2);
+        Snapshot snapshot = new Snapshot();
+        long publishNanos = 0, cpu = server.cpuNanos(), bytes = server.bytesSent;
+        long start = System.nanoTime();
+        for (long t = 1; t <= ticks; ++t) {
+            if (t == ticks / 2) {
+                depth += 4;
+                engine = new Engine(keys.nextLong(), Engine.NUM_SIDES, depth);
+            }
+            if (t % 30 == 0) engine.rotate(keys.nextInt(2) == 0 ? 1 : -1);
+            engine.step(Engine.TICK);
+            if (engine.lost()) engine = new Engine(keys.nextLong(), Engine.NUM_SIDES, depth);
+            snapshot.capture(engine, t);
+            long before = System.nanoTime();
+            server.publish(snapshot);
+            publishNanos += System.nanoTime() - before;
+
+            if (rate > 0) {
+                long due = start + (long)(t / rate * 1e9), now = System.nanoTime();
+                if (due > now) Thread.sleep((due - now) / 1_000_000, (int)((due - now) % 1_000_000));
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        synchronized (lastTick) {
+            lastTick[0] = ticks;
+        }
+        watcher.join();
+        cpu = server.cpuNanos() - cpu;
+        bytes = server.bytesSent - bytes;
+
+        int mismatches = 0;
+        for (Spectator spectator : spectators) {
+            if (!same(spectator.snapshot, snapshot)) ++mismatches;
+        }
+        System.out.printf("%d,%.0f,%.1f,%.2f,%.1f,%d,%d%n", count, ticks / seconds,
+                cpu / 1e7 / seconds, publishNanos / 1e3 / ticks, (double)bytes / ticks / spectators.length,
+                server.resyncs, mismatches);
+
+        server.close();
+        for (SelectionKey key : clients.keys()) key.channel().close();
+        clients.close();
+        return mismatches > 0;
+    }
+
+    /**
+     * Whether a spectator's view is the game's, allowing for the distance
+     * of falling blocks only being sent to the nearest 64th.
+     */
+    private static boolean same(Snapshot seen, Snapshot game) {
+        if (seen.tick != game.tick || seen.sides != game.sides || seen.depth != game.depth
+                || seen.offset != game.offset || seen.score != game.score
+                || seen.fallingCount != game.fallingCount) {
+            return false;
+        }
+        for (int c = 0; c < Board.NUM_COLORS; ++c) {
+            if (!Arrays.equals(seen.colors[c], game.colors[c])) return false;
+        }
+        for (int i = 0; i < game.fallingCount; ++i) {
+            if (seen.rot[i] != game.rot[i] || seen.color[i] != game.color[i]
+                    || Math.abs(seen.dist[i] - game.dist[i]) > 0.5 / DIST_SCALE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static void writeKeyframe(Snapshot s, ByteArrayOutputStream out) {
+        out.write(KEYFRAME);
+        Replay.writeVarint(out, s.tick);
+        Replay.writeVarint(out, s.sides);
+        Replay.writeVarint(out, s.depth);
+        Replay.writeVarint(out, s.offset);
+        Replay.writeVarint(out, s.score);
+        for (int p = 0; p < s.sides; ++p) writeStack(s, p, 0, out);
+        writeFalling(s, out);
+    }
+
+    /**
+     * Writes the delta from prev to s, which must be the same shape. lowest
+     * has a slot per side, all holding s.depth, and is left that way.
+     */
+    public static void writeDelta(Snapshot prev, Snapshot s, ByteArrayOutputStream out, int lowest[]) {
+        out.write(DELTA);
+        Replay.writeVarint(out, s.tick - prev.tick);
+        Replay.writeVarint(out, s.offset);
+        Replay.writeVarint(out, s.score);
+
+        int changed = 0;
+        for (int w = 0; w < s.colors[0].length; ++w) {
+            long diff = 0;
+            for (int c = 0; c < Board.NUM_COLORS; ++c) diff |= prev.colors[c][w] ^ s.colors[c][w];
+            for (; diff != 0; diff &= diff - 1) {
+                int bit = w << 6 | Long.numberOfTrailingZeros(diff), p = bit / s.depth;
+                if (lowest[p] == s.depth) ++changed;
+                lowest[p] = Math.min(lowest[p], bit - p * s.depth);
+            }
+        }
+        Replay.writeVarint(out, changed);
+        for (int p = 0; changed > 0; ++p) {
+            if (lowest[p] == s.depth) continue;
+            Replay.writeVarint(out, p);
+            Replay.writeVarint(out, lowest[p]);
+            writeStack(s, p, lowest[p], out);
+            lowest[p] = s.depth;
+            --changed;
+        }
+        writeFalling(s, out);
+    }
+
+    /**
+     * Writes how many blocks physical side p has from depth d up, and
+     * their colors.
+     */
+    private static void writeStack(Snapshot s, int p, int d, ByteArrayOutputStream out) {
+        int base = p * s.depth, n = 0;
+        while (d + n < s.depth && s.colorAt(base + d + n) != -1) ++n;
+        Replay.writeVarint(out, n);
+        for (int i = 0; i < n; ++i) out.write(s.colorAt(base + d + i));
+    }
+
+    private static void writeFalling(Snapshot s, ByteArrayOutputStream out) {
+        Replay.writeVarint(out, s.fallingCount);
+        for (int i = 0; i < s.fallingCount; ++i) {
+            Replay.writeVarint(out, s.rot[i]);
+            Replay.writeVarint(out, s.color[i]);
+            Replay.writeVarint(out, Math.max(Math.round(s.dist[i] * DIST_SCALE), 0));
+        }
+    }
+
+    /**
+     * Applies the body of one frame, after its length, to a snapshot: a
+     * keyframe replaces whatever was in it, and a delta updates the state
+     * the previous frame left it in.
+     */
+    public static void read(ByteBuffer in, Snapshot into) throws IOException {
+        try {
+            int type = in.get();
+            if (type == KEYFRAME) {
+                into.tick = Replay.readVarint(in);
+                long sides = Replay.readVarint(in), depth = Replay.readVarint(in);
+                if (sides < 1 || depth < 1 || sides * depth > Integer.MAX_VALUE / 2) {
+                    throw new IOException("bad board size " + sides + "x" + depth);
+                }
+                into.sides = (int)sides;
+                into.depth = (int)depth;
+                into.offset = (int)Replay.readVarint(in);
+                into.score = (int)Replay.readVarint(in);
+                int words = (into.sides * into.depth + 63) >>> 6;
+                for (int c = 0; c < Board.NUM_COLORS; ++c) {
+                    if (into.colors[c].length != words) into.colors[c] = new long[words];
+                    else Arrays.fill(into.colors[c], 0);
+                }
+                for (int p = 0; p < into.sides; ++p) readStack(in, into, p, 0);
+            } else if (type == DELTA) {
+                if (into.sides == 0) throw new IOException("delta before any keyframe");
+                into.tick += Replay.readVarint(in);
+                into.offset = (int)Replay.readVarint(in);
+                into.score = (int)Replay.readVarint(in);
+                for (long n = Replay.readVarint(in); n > 0; --n) {
+                    long p = Replay.readVarint(in), d = Replay.readVarint(in);
+                    if (p >= into.sides || d > into.depth) throw new IOException("bad cell " + p + ", " + d);
+                    // the old stack is contiguous too, so it ends at the first gap
+                    int base = (int)p * into.depth;
+                    for (int bit = base + (int)d, c; bit < base + into.depth && (c = into.colorAt(bit)) != -1; ++bit) {
+                        into.colors[c][bit >>> 6] &= ~(1L << bit);
+                    }
+                    readStack(in, into, (int)p, (int)d);
+                }
+            } else {
+                throw new IOException("unknown frame type " + type);
+            }
+
+            long count = Replay.readVarint(in);
+            if (count > in.remaining()) throw new IOException("bad falling block count " + count);
+            into.growFalling((int)count);
+            into.fallingCount = (int)count;
+            for (int i = 0; i < count; ++i) {
+                into.rot[i] = (int)Replay.readVarint(in);
+                into.color[i] = (int)Replay.readVarint(in);
+                into.dist[i] = (double)Replay.readVarint(in) / DIST_SCALE;
+                if (into.rot[i] >= into.sides || into.color[i] >= Board.NUM_COLORS) {
+                    throw new IOException("bad falling block");
+                }
+            }
+        } catch (BufferUnderflowException ex) {
+            throw new IOException("truncated frame");
+        }
+    }
+
+    private static void readStack(ByteBuffer in, Snapshot into, int p, int d) throws IOException {
+        long n = Replay.readVarint(in);
+        if (n > into.depth - d) throw new IOException("stack too tall");
+        for (int bit = p * into.depth + d, end = bit + (int)n; bit < end; ++bit) {
+            int c = in.get();
+            if (c < 0 || c >= Board.NUM_COLORS) throw new IOException("bad color " + c);
+            into.colors[c][bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /**
+     * One spectator's end of the connection: feed it whatever arrives on a
+     * non-blocking channel with read(), and snapshot always holds the game
+     * as of the last complete frame. It has no thread of its own, so one
+     * selector can look after any number of them.
+     */
+    public static class Spectator {
+
+        public final Snapshot snapshot = new Snapshot();
+        public long frames = 0, keyframes = 0;
+
+        private ByteBuffer in = ByteBuffer.allocate(1 << 16);
+
+        /**
+         * Reads everything available from channel and applies every
+         * complete frame. Returns false once the server has closed it.
+         */
+        public boolean read(SocketChannel channel) throws IOException {
+            int n;
+            while ((n = channel.read(in)) > 0) {
+                in.flip();
+                int needed = decode();
+                in.compact();
+                if (needed > in.capacity()) {
+                    // a keyframe of a big board
+                    ByteBuffer grown = ByteBuffer.allocate(needed);
+                    in.flip();
+                    grown.put(in);
+                    in = grown;
+                }
+            }
+            return n >= 0;
+        }
+
+        /**
+         * Applies every complete frame in the buffer, and returns how many
+         * bytes the incomplete one left over needs, if there is one.
+         */
+        private int decode() throws IOException {
+            while (in.hasRemaining()) {
+                int start = in.position();
+                long length;
+                try {
+                    length = Replay.readVarint(in);
+                } catch (BufferUnderflowException ex) {
+                    in.position(start);
+                    return 0;
+                }
+                if (in.remaining() < length) {
+                    int needed = (int)(in.position() - start + length);
+                    in.position(start);
+                    return needed;
+                }
+                ByteBuffer body = in.slice();
+                body.limit((int)length);
+                if (body.get(0) == KEYFRAME) ++keyframes;
+                SpectatorServer.read(body, snapshot);
+                ++frames;
+                in.position(in.position() + (int)length);
+            }
+            return 0;
+        }
+
+    }
+
+}
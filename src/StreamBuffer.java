@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2016  KeyboardFire <andy@keyboardfire.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.nio.ByteBuffer;
+
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL32.*;
+import static org.lwjgl.opengl.GL44.*;
+
+import static org.lwjgl.system.MemoryUtil.*;
+
+/**
+ * Streams a fresh batch of vertex data to the GPU every frame.
+ *
+ * Where the driver supports it (GL 4.4, or ARB_buffer_storage), the
+ * buffer is created once with immutable storage and stays mapped for
+ * good. It is split into a ring of regions, and each frame's data is
+ * copied straight into the next region, which is fenced once the frame's
+ * draws are issued. The GPU has two more frames' worth of time to finish
+ * with a region before it is written again. Nothing is allocated or
+ * mapped per frame, and the driver never copies anything.
+ *
+ * Elsewhere it falls back to orphaning: every frame respecifies the whole
+ * buffer and uploads into the new storage with glBufferSubData, so at
+ * least the driver never waits on the previous frame.
+ *
+ * upload() returns the byte offset the data landed at. With orphaning it
+ * is always 0. Either way, buffer() may change when the data outgrows the
+ * buffer, so attribute pointers set up against it must be set up again.
+ */
+public class StreamBuffer {
+
+    // frames in flight; the GPU has this many frames to finish with a region
+    private static final int RING = 3;
+
+    private final int target;
+    private final boolean persistent;
+
+    private int buffer = 0;
+    private long regionBytes;
+    private ByteBuffer mapped = null;
+    private final long fences[] = new long[RING];
+    private int region = 0;
+
+    private long stalls = 0, grown = 0;
+
+    /**
+     * Creates the buffer, bound to target, with room for regionBytes a
+     * frame. Persistent mapping is used if allowed and supported. Keep
+     * regionBytes a whole number of records, so every offset is too.
+     */
+    public StreamBuffer(int target, long regionBytes, boolean allowPersistent) {
+        GLCapabilities caps = GL.getCapabilities();
+        this.target = target;
+        this.persistent = allowPersistent && (caps.OpenGL44
+                || (caps.GL_ARB_buffer_storage && caps.GL_ARB_base_instance));
+        allocate(regionBytes);
+    }
+
+    private void allocate(long regionBytes) {
+        this.regionBytes = regionBytes;
+        buffer = GLResources.genBuffer();
+        glBindBuffer(target, buffer);
+        if (persistent) {
+            int flags = GL_MAP_WRITE_BIT | GL_MAP_PERSISTENT_BIT | GL_MAP_COHERENT_BIT;
+            GLResources.bufferStorage(target, buffer, RING * regionBytes, flags);
+            mapped = glMapBufferRange(target, 0, RING * regionBytes, flags);
+        } else {
+            GLResources.bufferData(target, buffer, regionBytes, GL_STREAM_DRAW);
+        }
+    }
+
+    /**
+     * The buffer the last upload() went into, which is left bound to the
+     * target.
+     */
+    public int buffer() {
+        return buffer;
+    }
+
+    /**
+     * How many times upload() has replaced the buffer with a bigger one.
+     * Anything pointing into the buffer, such as vertex attributes, has to
+     * be pointed again whenever this changes; comparing buffer names is not
+     * enough, since the new buffer may get the old one's name.
+     */
+    public long generation() {
+        return grown;
+    }
+
+    /**
+     * Copies data, from its position to its limit, into the buffer, and
+     * returns the byte offset it starts at. Call fence() once every draw
+     * reading it has been issued.
+     */
+    public long upload(ByteBuffer data) {
+        int bytes = data.remaining();
+        if (bytes > regionBytes) grow(bytes);
+
+        if (!persistent) {
+            glBindBuffer(target, buffer);
+            GLResources.bufferData(target, buffer, regionBytes, GL_STREAM_DRAW);
+            glBufferSubData(target, 0, data);
+            return 0;
+        }
+
+        region = (region + 1) % RING;
+        if (fences[region] != 0) {
+            if (glClientWaitSync(fences[region], 0, 0) == GL_TIMEOUT_EXPIRED) {
+                ++stalls;
+                glClientWaitSync(fences[region], GL_SYNC_FLUSH_COMMANDS_BIT, Long.MAX_VALUE);
+            }
+            glDeleteSync(fences[region]);
+            fences[region] = 0;
+        }
+        long offset = region * regionBytes;
+        memCopy(memAddress(data), memAddress(mapped) + offset, bytes);
+        glBindBuffer(target, buffer);
+        return offset;
+    }
+
+    /**
+     * Marks the end of the draws reading the last upload().
+     */
+    public void fence() {
+        if (persistent) fences[region] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+    }
+
+    /**
+     * Replaces the buffer with one at least twice as big. The old one can
+     * be deleted at once: GL keeps its storage until the GPU is done.
+     */
+    private void grow(long bytes) {
+        ++grown;
+        delete();
+        allocate(Math.max(bytes, regionBytes * 2));
+    }
+
+    public String summary() {
+        return String.format("%s, %d x %d bytes, %d stalls, grown %d times",
+                persistent ? "persistently mapped" : "orphaned", persistent ? RING : 1,
+                regionBytes, stalls, grown);
+    }
+
+    public void delete() {
+        for (int i = 0; i < RING; ++i) {
+            if (fences[i] != 0) glDeleteSync(fences[i]);
+            fences[i] = 0;
+        }
+        if (mapped != null) {
+            glBindBuffer(target, buffer);
+            glUnmapBuffer(target);
+            mapped = null;
+        }
+        GLResources.releaseBuffer(buffer);
+        buffer = 0;
+    }
+
+}
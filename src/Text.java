@@ -16,7 +16,6 @@
  */
 
 import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
 import java.nio.FloatBuffer;
 
 import org.lwjgl.*;
@@ -38,11 +37,12 @@ public class Text {
 
     private static final String vertexShaderSource =
         "#version 330 core\n"
-      + "layout (location = 0) in vec3 position;\n"
+      + "layout (location = 0) in vec2 position;\n"
       + "layout (location = 1) in vec2 texCoord;\n"
       + "out vec2 TexCoord;\n"
+      + "uniform vec3 transform;\n"
       + "void main() {\n"
-      + "    gl_Position = vec4(position.x, position.y, position.z, 1.0);\n"
+      + "    gl_Position = vec4(position * transform.z + transform.xy, 0.0, 1.0);\n"
       + "    TexCoord = texCoord;\n"
       + "}";
 
@@ -55,47 +55,89 @@ public class Text {
       + "    color = vec4(0xd8 / 255.0, 0xd8 / 255.0, 0xd8 / 255.0, texture(textureSampler, TexCoord).r);"
       + "}";
 
-    private int shaderProgram, vao;
+    private int shaderProgram, texture, vao, arrayBuffer, elementBuffer;
+    private int transform;
+    private float x = 0, y = 0, scale = 1;
 
-    private static final int FONT_HEIGHT = 24,
-                             BITMAP_W = 512,
-                             BITMAP_H = 512;
+    private String text;
+    private FloatBuffer vertices = BufferUtils.createFloatBuffer(0);
+    private int indexCount, indexQuads;
+
+    static final int FONT_HEIGHT = 24,
+                     BITMAP_W = 512,
+                     BITMAP_H = 512;
 
     private STBTTBakedChar.Buffer cdata;
 
     public void compileShader() {
-        IntBuffer success = BufferUtils.createIntBuffer(1);
-
-        int vertexShader = glCreateShader(GL_VERTEX_SHADER);
-        glShaderSource(vertexShader, vertexShaderSource);
-        glCompileShader(vertexShader);
-        glGetShaderiv(vertexShader, GL_COMPILE_STATUS, success);
-        if (success.get(0) == 0) {
-            System.err.println(glGetShaderInfoLog(vertexShader));
-        }
+        shaderProgram = ShaderCache.program(vertexShaderSource, fragmentShaderSource);
+
+        glUseProgram(shaderProgram);
+        glUniform1i(glGetUniformLocation(shaderProgram, "textureSampler"), 0);
+        transform = glGetUniformLocation(shaderProgram, "transform");
+    }
+
+    /**
+     * Moves the top left of the first line to (x, y) and scales the text,
+     * where a scale of 1 is FONT_HEIGHT pixels to 0.12 units.
+     */
+    public void setPosition(float x, float y, float scale) {
+        this.x = x;
+        this.y = y;
+        this.scale = scale;
+    }
 
-        int fragmentShader = glCreateShader(GL_FRAGMENT_SHADER);
-        glShaderSource(fragmentShader, fragmentShaderSource);
-        glCompileShader(fragmentShader);
-        glGetShaderiv(fragmentShader, GL_COMPILE_STATUS, success);
-        if (success.get(0) == 0) {
-            System.err.println(glGetShaderInfoLog(fragmentShader));
+    /**
+     * Lays out the given string into a single interleaved vertex buffer.
+     * Does nothing if the string is the same as the one currently held, so
+     * this is cheap to call every frame.
+     */
+    public void setText(String text) {
+        if (text.equals(this.text)) return;
+        this.text = text;
+
+        if (vao == 0) genVAO();
+
+        if (vertices.capacity() < text.length() * 4 * 4) {
+            vertices = BufferUtils.createFloatBuffer(text.length() * 4 * 4);
         }
+        vertices.clear();
+        int quads = layout(cdata, text, vertices);
+        vertices.flip();
+
+        glBindVertexArray(vao);
 
-        shaderProgram = glCreateProgram();
-        glAttachShader(shaderProgram, vertexShader);
-        glAttachShader(shaderProgram, fragmentShader);
-        glLinkProgram(shaderProgram);
-        glGetProgramiv(shaderProgram, GL_COMPILE_STATUS, success);
-        if (success.get(0) == 0) {
-            System.err.println(glGetProgramInfoLog(shaderProgram));
+        glBindBuffer(GL_ARRAY_BUFFER, arrayBuffer);
+        GLResources.bufferData(GL_ARRAY_BUFFER, arrayBuffer, vertices, GL_STATIC_DRAW);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+
+        if (quads > indexQuads) {
+            // indices only depend on the number of quads, so they only need
+            // to be regenerated when the string gets longer than ever before
+            int indices[] = new int[quads * 6];
+            for (int i = 0; i < quads; ++i) {
+                indices[i*6 + 0] = i*4 + 0;
+                indices[i*6 + 1] = i*4 + 1;
+                indices[i*6 + 2] = i*4 + 2;
+                indices[i*6 + 3] = i*4 + 0;
+                indices[i*6 + 4] = i*4 + 2;
+                indices[i*6 + 5] = i*4 + 3;
+            }
+            GLResources.bufferData(GL_ELEMENT_ARRAY_BUFFER, elementBuffer, indices, GL_STATIC_DRAW);
+            indexQuads = quads;
         }
 
-        glDeleteShader(vertexShader);
-        glDeleteShader(fragmentShader);
+        glBindVertexArray(0);
+
+        indexCount = quads * 6;
     }
 
-    public void genVAO(String text) {
+    /**
+     * Writes four (x, y, s, t) vertices per visible character of text into
+     * vertices, and returns the number of characters written.
+     */
+    static int layout(STBTTBakedChar.Buffer cdata, String text, FloatBuffer vertices) {
+        int quads = 0;
         try (MemoryStack stack = stackPush()) {
             FloatBuffer x = stack.floats(0.0f);
             FloatBuffer y = stack.floats(0.0f);
@@ -111,65 +153,82 @@ public class Text {
                 } else if (c < 32 || c >= 128) continue;
                 stbtt_GetBakedQuad(cdata, BITMAP_W, BITMAP_H, c - 32, x, y, q, true);
 
-                final double vertices[] = {
-                    // coordinates                     // textures
-                    q.x0() * 0.005, -q.y1() * 0.005, 0, q.s0(), q.t1(),
-                    q.x1() * 0.005, -q.y1() * 0.005, 0, q.s1(), q.t1(),
-                    q.x1() * 0.005, -q.y0() * 0.005, 0, q.s1(), q.t0(),
-                    q.x0() * 0.005, -q.y0() * 0.005, 0, q.s0(), q.t0()
-                };
-
-                final int indices[] = {
-                    0, 1, 2,
-                    0, 2, 3
-                };
-
-                vao = glGenVertexArrays();
-                glBindVertexArray(vao);
-
-                glBindBuffer(GL_ARRAY_BUFFER, glGenBuffers());
-                glBufferData(GL_ARRAY_BUFFER, vertices, GL_STATIC_DRAW);
-
-                glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, glGenBuffers());
-                glBufferData(GL_ELEMENT_ARRAY_BUFFER, indices, GL_STATIC_DRAW);
-
-                glVertexAttribPointer(0, 3, GL_DOUBLE, false, 8 * 5, 0);
-                glVertexAttribPointer(1, 2, GL_DOUBLE, false, 8 * 5, 8 * 3);
-                glEnableVertexAttribArray(0);
-                glEnableVertexAttribArray(1);
-
-                glBindBuffer(GL_ARRAY_BUFFER, 0);
-                //glBindVertexArray(0);
-
-                glUseProgram(shaderProgram);
-                //glBindVertexArray(vao);
-                glUniform1i(glGetUniformLocation(shaderProgram, "textureSampler"), 0);
-                glDrawElements(GL_TRIANGLES, 6, GL_UNSIGNED_INT, 0);
-                glBindVertexArray(0);
+                vertices
+                    // coordinates                                 // textures
+                    .put(q.x0() * 0.005f).put(-q.y1() * 0.005f).put(q.s0()).put(q.t1())
+                    .put(q.x1() * 0.005f).put(-q.y1() * 0.005f).put(q.s1()).put(q.t1())
+                    .put(q.x1() * 0.005f).put(-q.y0() * 0.005f).put(q.s1()).put(q.t0())
+                    .put(q.x0() * 0.005f).put(-q.y0() * 0.005f).put(q.s0()).put(q.t0());
+                ++quads;
             }
         }
+        return quads;
+    }
+
+    private void genVAO() {
+        vao = GLResources.genVertexArray();
+        glBindVertexArray(vao);
+
+        arrayBuffer = GLResources.genBuffer();
+        glBindBuffer(GL_ARRAY_BUFFER, arrayBuffer);
+
+        elementBuffer = GLResources.genBuffer();
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, elementBuffer);
+
+        glVertexAttribPointer(0, 2, GL_FLOAT, false, 4 * 4, 0);
+        glVertexAttribPointer(1, 2, GL_FLOAT, false, 4 * 4, 4 * 2);
+        glEnableVertexAttribArray(0);
+        glEnableVertexAttribArray(1);
+
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        glBindVertexArray(0);
     }
 
     public void draw() {
+        if (indexCount == 0) return;
         glUseProgram(shaderProgram);
+        glUniform3f(transform, x, y, scale);
+        glActiveTexture(GL_TEXTURE0);
+        glBindTexture(GL_TEXTURE_2D, texture);
         glBindVertexArray(vao);
-        glDrawElements(GL_TRIANGLES, 6, GL_UNSIGNED_INT, 0);
+        glDrawElements(GL_TRIANGLES, indexCount, GL_UNSIGNED_INT, 0);
         glBindVertexArray(0);
     }
 
+    public void delete() {
+        GLResources.releaseProgram(shaderProgram);
+        GLResources.releaseTexture(texture);
+        GLResources.releaseVertexArray(vao);
+        GLResources.releaseBuffer(arrayBuffer);
+        GLResources.releaseBuffer(elementBuffer);
+        shaderProgram = texture = vao = arrayBuffer = elementBuffer = 0;
+        text = null;
+        indexCount = indexQuads = 0;
+        cdata.free();
+    }
+
+    /**
+     * Rasterizes printable ASCII into bitmap, which must hold BITMAP_W *
+     * BITMAP_H bytes, and returns the metrics of each character.
+     */
+    static STBTTBakedChar.Buffer bakeFont(ByteBuffer font, ByteBuffer bitmap) {
+        STBTTBakedChar.Buffer cdata = STBTTBakedChar.malloc(FontCache.NUM_CHARS);
+        stbtt_BakeFontBitmap(font, FONT_HEIGHT, bitmap, BITMAP_W, BITMAP_H, 32, cdata);
+        return cdata;
+    }
+
     public STBTTBakedChar.Buffer loadFont(String filePath) {
-        int texture = glGenTextures();
-        cdata = STBTTBakedChar.malloc(96);
+        texture = GLResources.genTexture();
 
         try {
-            ByteBuffer font = Util.readByteBuffer(filePath);
-
-            ByteBuffer bitmap = BufferUtils.createByteBuffer(BITMAP_W * BITMAP_H);
-            stbtt_BakeFontBitmap(font, FONT_HEIGHT, bitmap, BITMAP_W, BITMAP_H, 32, cdata);
+            FontCache.Atlas atlas = FontCache.load(filePath);
+            cdata = atlas.cdata;
+            ByteBuffer bitmap = atlas.bitmap;
 
             glActiveTexture(GL_TEXTURE0);
             glBindTexture(GL_TEXTURE_2D, texture);
             glTexImage2D(GL_TEXTURE_2D, 0, GL_RED, BITMAP_W, BITMAP_H, 0, GL_RED, GL_UNSIGNED_BYTE, bitmap);
+            GLResources.setTextureBytes(texture, BITMAP_W * BITMAP_H);
             glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
             glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
         } catch (java.io.IOException ex) {
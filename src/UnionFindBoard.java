@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2016  KeyboardFire <andy@keyboardfire.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A board that keeps its same-colored regions in a union-find forest as
+ * cells are set, instead of flood filling from a block when it lands. It
+ * plays the same game as Board, without rotation, and is only here so that
+ * Bench can compare the two: board.play lands the same blocks on both,
+ * checks that they agree, and times each.
+ *
+ * Removing cells can split a region, which union-find can't undo; instead
+ * the regions that lost a cell are marked, and just their remaining cells
+ * are joined up again the next time the board is changed or asked for a
+ * region.
+ */
+public class UnionFindBoard {
+
+    public final int sides, depth;
+
+    // the color of every cell, or -1, at bit side * depth + d as in Board,
+    // and the number of blocks stacked on every side
+    private final int cells[];
+    private final int heights[];
+
+    // each cell's parent (itself at a root), the number of cells in each
+    // root's region, and each region's cells linked into a circular list,
+    // so that a region can be listed without searching for it
+    private final int parent[], size[], next[];
+
+    // roots of regions that have lost cells since the last settle()
+    private final int dirty[];
+    private int dirtyCount = 0;
+    private final boolean isDirty[];
+
+    // scratch for settle() and resolve(): the cells to rebuild or clear
+    // next, the lowest cleared depth on each side, the blocks that moved,
+    // and the colors of one side's blocks while it is compacted
+    private final int rebuild[];
+    private final int batch[];
+    private int batchSize = 0;
+    private final boolean inBatch[];
+    private final int lowest[];
+    private final int moved[];
+    private int movedCount = 0, drops = 0;
+    private final int stack[];
+
+    public UnionFindBoard(int sides, int depth) {
+        this.sides = sides;
+        this.depth = depth;
+
+        int count = sides * depth;
+        cells = new int[count];
+        java.util.Arrays.fill(cells, -1);
+        heights = new int[sides];
+
+        parent = new int[count];
+        size = new int[count];
+        next = new int[count];
+        dirty = new int[count];
+        isDirty = new boolean[count];
+
+        rebuild = new int[count];
+        batch = new int[count];
+        inBatch = new boolean[count];
+        lowest = new int[sides];
+        java.util.Arrays.fill(lowest, depth);
+        moved = new int[count];
+        stack = new int[depth];
+    }
+
+    /**
+     * Makes this board an exact copy of another board of the same size,
+     * regions and all.
+     */
+    public void copyFrom(UnionFindBoard other) {
+        other.settle();
+        forgetDirty();
+        System.arraycopy(other.cells, 0, cells, 0, cells.length);
+        System.arraycopy(other.heights, 0, heights, 0, heights.length);
+        System.arraycopy(other.parent, 0, parent, 0, parent.length);
+        System.arraycopy(other.size, 0, size, 0, size.length);
+        System.arraycopy(other.next, 0, next, 0, next.length);
+    }
+
+    public int colorAt(int bit) {
+        return cells[bit];
+    }
+
+    public int height(int side) {
+        return heights[side];
+    }
+
+    public void set(int side, int d, int color) {
+        settle();
+        int bit = side * depth + d;
+        cells[bit] = color;
+        if (d >= heights[side]) heights[side] = d + 1;
+        parent[bit] = next[bit] = bit;
+        size[bit] = 1;
+        join(bit);
+    }
+
+    private void remove(int bit) {
+        int root = find(bit);
+        if (!isDirty[root]) {
+            isDirty[root] = true;
+            dirty[dirtyCount++] = root;
+        }
+        cells[bit] = -1;
+    }
+
+    private int find(int x) {
+        while (parent[x] != x) {
+            x = parent[x] = parent[parent[x]];
+        }
+        return x;
+    }
+
+    private void union(int a, int b) {
+        a = find(a);
+        b = find(b);
+        if (a == b) return;
+        if (size[a] < size[b]) {
+            int t = a;
+            a = b;
+            b = t;
+        }
+        parent[b] = a;
+        size[a] += size[b];
+        // swapping one successor from each splices the two circular lists
+        int t = next[a];
+        next[a] = next[b];
+        next[b] = t;
+    }
+
+    /**
+     * Joins a cell to every neighbour of its own color, with the same
+     * connections as Board.region().
+     */
+    private void join(int bit) {
+        int color = cells[bit], d = bit % depth, stride = (sides - 1) * depth;
+        if (d > 0 && cells[bit - 1] == color) union(bit, bit - 1);
+        if (d < depth - 1 && cells[bit + 1] == color) union(bit, bit + 1);
+        int left = bit < depth ? bit + stride : bit - depth;
+        if (cells[left] == color) union(bit, left);
+        int right = bit >= stride ? bit - stride : bit + depth;
+        if (cells[right] == color) union(bit, right);
+    }
+
+    /**
+     * Rebuilds the regions that have lost cells. Every cell left in one is
+     * made a region of its own, then joined to its neighbours again; any
+     * same-colored neighbour was in the same region, so no other region is
+     * touched.
+     */
+    private void settle() {
+        if (dirtyCount == 0) return;
+        int n = 0;
+        for (int i = 0; i < dirtyCount; ++i) {
+            int root = dirty[i], cell = root;
+            do {
+                if (cells[cell] != -1) rebuild[n++] = cell;
+                cell = next[cell];
+            } while (cell != root);
+        }
+        forgetDirty();
+
+        for (int i = 0; i < n; ++i) {
+            int cell = rebuild[i];
+            parent[cell] = next[cell] = cell;
+            size[cell] = 1;
+        }
+        for (int i = 0; i < n; ++i) join(rebuild[i]);
+    }
+
+    private void forgetDirty() {
+        for (int i = 0; i < dirtyCount; ++i) isDirty[dirty[i]] = false;
+        dirtyCount = 0;
+    }
+
+    /**
+     * The number of cells in the region containing an occupied cell.
+     */
+    public int regionSize(int bit) {
+        settle();
+        return size[find(bit)];
+    }
+
+    /**
+     * Resolves a block just set at (side, d) exactly as Board.resolve()
+     * does, and returns the number of cells cleared in all.
+     */
+    public int resolve(int side, int d) {
+        drops = 0;
+        int bit = side * depth + d;
+        if (regionSize(bit) < 3) return 0;
+        addRegion(bit);
+
+        int cleared = 0;
+        while (batchSize > 0) {
+            for (int i = 0; i < batchSize; ++i) {
+                int cell = batch[i], p = cell / depth;
+                inBatch[cell] = false;
+                lowest[p] = Math.min(lowest[p], cell - p * depth);
+                remove(cell);
+            }
+            cleared += batchSize;
+            batchSize = 0;
+
+            movedCount = 0;
+            for (int p = 0; p < sides; ++p) {
+                if (lowest[p] == depth) continue;
+                compact(p, lowest[p]);
+                lowest[p] = depth;
+            }
+            for (int i = 0; i < movedCount; ++i) {
+                int cell = moved[i];
+                if (!inBatch[cell] && regionSize(cell) >= 3) addRegion(cell);
+            }
+        }
+        return cleared;
+    }
+
+    /**
+     * The number of block moves made by the last resolve().
+     */
+    public int drops() {
+        return drops;
+    }
+
+    private void addRegion(int bit) {
+        int root = find(bit), cell = root;
+        do {
+            inBatch[cell] = true;
+            batch[batchSize++] = cell;
+            cell = next[cell];
+        } while (cell != root);
+    }
+
+    /**
+     * Drops every block on side p above depth lo, where a cell was just
+     * cleared, down into the gaps. The blocks are taken off and set again
+     * lower down, which is what union-find has to pay for a move.
+     */
+    private void compact(int p, int lo) {
+        int base = p * depth, n = 0;
+        for (int d = lo; d < heights[p]; ++d) {
+            if (cells[base + d] == -1) continue;
+            stack[n++] = cells[base + d];
+            remove(base + d);
+        }
+        heights[p] = lo;
+        for (int i = 0; i < n; ++i) {
+            set(p, lo + i, stack[i]);
+            moved[movedCount++] = base + lo + i;
+        }
+        drops += n;
+    }
+
+}
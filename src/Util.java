@@ -1,8 +1,14 @@
 import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.channels.SeekableByteChannel;
 import org.lwjgl.BufferUtils;
+import org.lwjgl.stb.STBVorbisInfo;
+import static org.lwjgl.stb.STBVorbis.*;
+import static org.lwjgl.system.MemoryUtil.NULL;
 
 class Util {
 
@@ -17,4 +23,48 @@ class Util {
         return buf;
     }
 
+    // where caches of compiled shaders and the like go: -Djexx.cacheDir,
+    // else $XDG_CACHE_HOME/jexx, else ~/.cache/jexx
+    public static Path cacheDir() {
+        String dir = System.getProperty("jexx.cacheDir");
+        if (dir != null) return Paths.get(dir);
+        String xdg = System.getenv("XDG_CACHE_HOME");
+        if (xdg != null && !xdg.isEmpty()) return Paths.get(xdg, "jexx");
+        return Paths.get(System.getProperty("user.home"), ".cache", "jexx");
+    }
+
+    // decodes a whole Ogg Vorbis file to interleaved 16-bit PCM, filling in info
+    public static ShortBuffer decodeVorbis(ByteBuffer vorbis, STBVorbisInfo info) {
+        IntBuffer error = BufferUtils.createIntBuffer(1);
+        long decoder = stb_vorbis_open_memory(vorbis, error, null);
+        if (decoder == NULL) System.err.println("stb_vorbis_open_memory: " + error.get(0));
+        stb_vorbis_get_info(decoder, info);
+        int channels = info.channels();
+        int lengthSamples = stb_vorbis_stream_length_in_samples(decoder);
+        ShortBuffer pcm = BufferUtils.createShortBuffer(lengthSamples * channels);
+        pcm.limit(stb_vorbis_get_samples_short_interleaved(decoder, channels, pcm) * channels);
+        stb_vorbis_close(decoder);
+        return pcm;
+    }
+
+    // IEEE 754 binary16 conversion, rounding to nearest
+    public static short toHalfFloat(float f) {
+        int bits = Float.floatToIntBits(f);
+        int sign = (bits >>> 16) & 0x8000;
+        int val = (bits & 0x7fffffff) + 0x1000;
+
+        if (val >= 0x47800000) {
+            if ((bits & 0x7fffffff) >= 0x47800000) {
+                if (val < 0x7f800000 + 0x1000) return (short)(sign | 0x7c00);
+                return (short)(sign | 0x7c00 | (bits & 0x007fffff) >>> 13);
+            }
+            return (short)(sign | 0x7bff);
+        }
+        if (val >= 0x38800000) return (short)(sign | (val - 0x38000000) >>> 13);
+        if (val < 0x33000000) return (short)sign;
+        val = (bits & 0x7fffffff) >>> 23;
+        return (short)(sign | ((bits & 0x7fffff | 0x800000)
+                    + (0x800000 >>> (val - 102)) >>> (126 - val)));
+    }
+
 }